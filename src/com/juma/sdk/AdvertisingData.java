@@ -0,0 +1,47 @@
+package com.juma.sdk;
+
+/**
+ * Matching of the AD structures of an advertisement.
+ * Walks the raw scan record in place, nothing is copied or allocated.
+ */
+final class AdvertisingData {
+
+	static final int TYPE_UUID16_INCOMPLETE = 0x02;
+	static final int TYPE_UUID16_COMPLETE = 0x03;
+
+	private AdvertisingData() {
+	}
+
+	/**
+	 * Check whether a record advertises a 16-bit service uuid, without allocating
+	 * @param data scan record
+	 * @param uuid16 16-bit service uuid
+	 * @return result.true/false
+	 */
+	static boolean containsUuid16(byte[] data, int uuid16){
+		if(data == null)
+			return false;
+
+		byte low = (byte) uuid16;
+		byte high = (byte) (uuid16 >> 8);
+
+		int position = 0;
+		while (position < data.length) {
+			int fieldLength = data[position] & 0xff;
+			if(fieldLength == 0 || position + 1 + fieldLength > data.length)
+				return false;
+
+			int fieldType = data[position + 1] & 0xff;
+			if(fieldType == TYPE_UUID16_INCOMPLETE || fieldType == TYPE_UUID16_COMPLETE){
+				int end = position + 1 + fieldLength;
+				for (int i = position + 2; i + 1 < end; i += 2) {
+					if(data[i] == low && data[i + 1] == high)
+						return true;
+				}
+			}
+
+			position += fieldLength + 1;
+		}
+		return false;
+	}
+}
@@ -0,0 +1,117 @@
+package com.juma.sdk;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+import android.util.Log;
+
+/**
+ * Hands callbacks of one device or scan helper to an executor, in order.
+ * Callbacks wait in a bounded queue that is drained by one task at a time, so a shared executor
+ * never runs two callbacks of the same source at once. Without an executor callbacks run inline.
+ */
+final class CallbackDispatcher {
+
+	static final int DEFAULT_CAPACITY = 256;
+
+	private final ArrayDeque<Runnable> queue = new ArrayDeque<Runnable>();
+	private volatile Executor executor = null;
+	private int capacity = DEFAULT_CAPACITY;
+	private boolean isScheduled = false;
+	private long droppedCount = 0;
+
+	/**
+	 * Set the executor callbacks run on. Callbacks queued before the switch still run first,
+	 * on the previous executor, and later ones wait for them.
+	 * @param executor executor, null to run callbacks on the calling thread
+	 * @param capacity callbacks that may wait before droppable ones are dropped
+	 */
+	synchronized void setExecutor(Executor executor, int capacity){
+		this.executor = executor;
+		this.capacity = Math.max(1, capacity);
+	}
+
+	/**
+	 * Check whether callbacks are queued rather than run inline, buffers handed to them have to be copied
+	 * @return result.true/false
+	 */
+	synchronized boolean isAsync(){
+		return executor != null || isScheduled;
+	}
+
+	Executor getExecutor(){
+		return executor;
+	}
+
+	synchronized int getQueueDepth(){
+		return queue.size();
+	}
+
+	synchronized long getDroppedCount(){
+		return droppedCount;
+	}
+
+	/**
+	 * Run a callback on the executor after the ones already queued
+	 * @param task callback
+	 * @param droppable true if the callback may be dropped when the queue is full,
+	 * false for state changes and results that are always delivered
+	 */
+	void dispatch(Runnable task, boolean droppable){
+		Executor target;
+		synchronized (this) {
+			target = executor;
+			if(target != null || isScheduled){
+				if(droppable && queue.size() >= capacity){
+					droppedCount++;
+					return;
+				}
+
+				queue.add(task);
+				if(isScheduled)
+					return;
+				isScheduled = true;
+			}
+		}
+
+		if(target == null){
+			task.run();
+			return;
+		}
+
+		try {
+			target.execute(drainTask);
+		} catch (RejectedExecutionException e) {
+			Log.e(CallbackDispatcher.class.getName(), "Executor rejected callbacks", e);
+			synchronized (this) {
+				droppedCount += queue.size();
+				queue.clear();
+				isScheduled = false;
+			}
+		}
+	}
+
+	private final Runnable drainTask = new Runnable() {
+
+		@Override
+		public void run() {
+			while (true) {
+				Runnable task;
+				synchronized (CallbackDispatcher.this) {
+					task = queue.poll();
+					if(task == null){
+						isScheduled = false;
+						return;
+					}
+				}
+
+				try {
+					task.run();
+				} catch (RuntimeException e) {
+					Log.e(CallbackDispatcher.class.getName(), "Callback failed", e);
+				}
+			}
+		}
+	};
+}
@@ -0,0 +1,194 @@
+package com.juma.sdk;
+
+import java.security.SecureRandom;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import android.bluetooth.BluetoothAdapter;
+import android.util.Log;
+
+/**
+ * Maps device MAC addresses to the obfuscated uuids handed out by the SDK and back.
+ * The AES key is derived once per local adapter and recent results are kept in bounded LRU caches,
+ * so a device found by a scan is connected without decrypting its uuid.
+ */
+final class DeviceIdCipher {
+
+	private static final int CACHE_SIZE = 256;
+
+	private static DeviceIdCipher instance = null;
+
+	private final BluetoothAdapter adapter;
+	private final SecretKeySpec keySpec;
+	private Cipher encryptCipher = null;
+	private Cipher decryptCipher = null;
+
+	private final Map<String, UUID> encryptCache = new LinkedHashMap<String, UUID>(32, 0.75f, true){
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, UUID> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	private final Map<UUID, String> decryptCache = new LinkedHashMap<UUID, String>(32, 0.75f, true){
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<UUID, String> eldest) {
+			return size() > CACHE_SIZE;
+		}
+	};
+
+	private DeviceIdCipher(BluetoothAdapter adapter) throws Exception {
+		this.adapter = adapter;
+		this.keySpec = new SecretKeySpec(getRawKey(adapter.getAddress().getBytes()), "AES");
+	}
+
+	/**
+	 * Get the cipher of a local adapter, deriving its key on first use
+	 * @param adapter local bluetooth adapter
+	 * @return cipher, null if the key could not be derived
+	 */
+	static synchronized DeviceIdCipher getInstance(BluetoothAdapter adapter){
+		if(adapter == null)
+			return null;
+
+		if(instance == null || instance.adapter != adapter){
+			try {
+				instance = new DeviceIdCipher(adapter);
+			} catch (Exception e) {
+				Log.e(DeviceIdCipher.class.getName(), "Key derivation failed", e);
+				return null;
+			}
+		}
+		return instance;
+	}
+
+	/**
+	 * Get the obfuscated uuid of a device
+	 * @param address device MAC address
+	 * @return device uuid, null on failure
+	 */
+	synchronized UUID encrypt(String address){
+		UUID uuid = encryptCache.get(address);
+		if(uuid != null)
+			return uuid;
+
+		try {
+			if(encryptCipher == null){
+				encryptCipher = Cipher.getInstance("AES");
+				encryptCipher.init(Cipher.ENCRYPT_MODE, keySpec);
+			}
+
+			byte[] encrypted = encryptCipher.doFinal(stripColons(address));
+			uuid = toUuid(encrypted);
+		} catch (Exception e) {
+			encryptCipher = null;
+			Log.e(DeviceIdCipher.class.getName(), "Encrypt failed = "+address, e);
+			return null;
+		}
+
+		encryptCache.put(address, uuid);
+		decryptCache.put(uuid, address);
+		return uuid;
+	}
+
+	/**
+	 * Get the MAC address of a device uuid, decrypting only when the uuid is not indexed
+	 * @param uuid device uuid
+	 * @return device MAC address, null on failure
+	 */
+	synchronized String decrypt(UUID uuid){
+		String address = decryptCache.get(uuid);
+		if(address != null)
+			return address;
+
+		try {
+			if(decryptCipher == null){
+				decryptCipher = Cipher.getInstance("AES");
+				decryptCipher.init(Cipher.DECRYPT_MODE, keySpec);
+			}
+
+			address = insertColons(decryptCipher.doFinal(toBytes(uuid)));
+		} catch (Exception e) {
+			decryptCipher = null;
+			Log.e(DeviceIdCipher.class.getName(), "Decrypt failed = "+uuid.toString(), e);
+			return null;
+		}
+
+		decryptCache.put(uuid, address);
+		encryptCache.put(address, uuid);
+		return address;
+	}
+
+	private static byte[] stripColons(String address){
+		byte[] clear = new byte[address.length()];
+		int length = 0;
+		for (int i = 0; i < address.length(); i++) {
+			char c = address.charAt(i);
+			if(c != ':')
+				clear[length++] = (byte) c;
+		}
+
+		byte[] result = new byte[length];
+		System.arraycopy(clear, 0, result, 0, length);
+		return result;
+	}
+
+	private static String insertColons(byte[] clear){
+		StringBuffer sb = new StringBuffer(clear.length + clear.length / 2);
+		for (int i = 0; i < clear.length; i++) {
+			if(i > 0 && i % 2 == 0)
+				sb.append(':');
+			sb.append((char) clear[i]);
+		}
+		return sb.toString();
+	}
+
+	private static byte[] toBytes(UUID uuid){
+		byte[] buf = new byte[16];
+		long msb = uuid.getMostSignificantBits();
+		long lsb = uuid.getLeastSignificantBits();
+		for (int i = 7; i >= 0; i--) {
+			buf[i] = (byte) msb;
+			msb >>>= 8;
+		}
+		for (int i = 15; i >= 8; i--) {
+			buf[i] = (byte) lsb;
+			lsb >>>= 8;
+		}
+		return buf;
+	}
+
+	private static UUID toUuid(byte[] buf){
+		long msb = 0;
+		long lsb = 0;
+		for (int i = 0; i < 8; i++) {
+			msb = (msb << 8) | (buf[i] & 0xff);
+		}
+		for (int i = 8; i < 16; i++) {
+			lsb = (lsb << 8) | (buf[i] & 0xff);
+		}
+		return new UUID(msb, lsb);
+	}
+
+	private static byte[] getRawKey(byte[] seed) throws Exception {
+		KeyGenerator kgen = KeyGenerator.getInstance("AES");
+		SecureRandom sr = SecureRandom.getInstance("SHA1PRNG", "Crypto");
+		sr.setSeed(seed);
+		kgen.init(128, sr);
+		SecretKey skey = kgen.generateKey();
+		byte[] raw = skey.getEncoded();
+		return raw;
+	}
+}
@@ -0,0 +1,118 @@
+package com.juma.sdk;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Devices seen by a {@link ScanHelper}, one {@link JumaDevice} per MAC address.
+ * Decides which adverts are worth reporting and which devices are lost.
+ */
+final class DeviceRegistry {
+
+	static final class Entry {
+		final JumaDevice device;
+		int rssi;
+		int reportedRssi;
+		long lastSeen;
+		long lastReport;
+
+		Entry(JumaDevice device, int rssi, long now) {
+			this.device = device;
+			this.rssi = rssi;
+			this.reportedRssi = rssi;
+			this.lastSeen = now;
+			this.lastReport = now;
+		}
+	}
+
+	private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+	private long reportInterval = 0;
+	private int rssiThreshold = 0;
+	private long timeout = 10000;
+
+	synchronized void setReportInterval(long reportInterval){
+		this.reportInterval = reportInterval;
+	}
+
+	synchronized void setRssiThreshold(int rssiThreshold){
+		this.rssiThreshold = rssiThreshold;
+	}
+
+	synchronized void setTimeout(long timeout){
+		this.timeout = timeout;
+	}
+
+	synchronized long getTimeout(){
+		return timeout;
+	}
+
+	synchronized Entry get(String address){
+		return entries.get(address);
+	}
+
+	synchronized JumaDevice find(UUID uuid){
+		for (Entry entry : entries.values()) {
+			if(entry.device.getUuid().equals(uuid))
+				return entry.device;
+		}
+		return null;
+	}
+
+	synchronized Entry add(String address, JumaDevice device, int rssi, long now){
+		Entry entry = new Entry(device, rssi, now);
+		entries.put(address, entry);
+		return entry;
+	}
+
+	/**
+	 * Record an advert of a known device
+	 * @return true if the advert should be reported
+	 */
+	synchronized boolean update(Entry entry, int rssi, long now){
+		entry.rssi = rssi;
+		entry.lastSeen = now;
+
+		if(now - entry.lastReport < reportInterval)
+			return false;
+
+		if(Math.abs(rssi - entry.reportedRssi) < rssiThreshold)
+			return false;
+
+		entry.reportedRssi = rssi;
+		entry.lastReport = now;
+		return true;
+	}
+
+	/**
+	 * Remove the devices not seen within the timeout, except the ones in use
+	 * @return removed devices, null if none
+	 */
+	synchronized List<JumaDevice> evict(long now){
+		if(timeout <= 0)
+			return null;
+
+		List<JumaDevice> lost = null;
+		Iterator<Entry> iterator = entries.values().iterator();
+		while (iterator.hasNext()) {
+			Entry entry = iterator.next();
+			if(now - entry.lastSeen < timeout)
+				continue;
+
+			if(entry.device.isInUse()){
+				entry.lastSeen = now;
+				continue;
+			}
+
+			iterator.remove();
+			if(lost == null)
+				lost = new ArrayList<JumaDevice>();
+			lost.add(entry.device);
+		}
+		return lost;
+	}
+}
@@ -0,0 +1,71 @@
+package com.juma.sdk;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Discoveries waiting for the next batch delivery, one record per device
+ * holding the latest rssi seen in the window.
+ */
+final class DiscoveryBatch {
+
+	static final int ADDED = 0;
+	static final int STARTED = 1;
+	static final int FULL = 2;
+
+	private final Map<JumaDevice, ScanHelper.DeviceRecord> pending = new LinkedHashMap<JumaDevice, ScanHelper.DeviceRecord>();
+
+	private long interval = 0;
+	private int maxResults = 0;
+
+	synchronized void configure(long interval, int maxResults){
+		this.interval = interval;
+		this.maxResults = maxResults;
+	}
+
+	synchronized boolean isEnabled(){
+		return interval > 0 || maxResults > 0;
+	}
+
+	synchronized long getInterval(){
+		return interval;
+	}
+
+	/**
+	 * Add a discovery to the batch
+	 * @return {@link #FULL} if the batch should be delivered now, {@link #STARTED} if the discovery
+	 * started a new batch, {@link #ADDED} otherwise
+	 */
+	synchronized int add(JumaDevice device, int rssi, long now){
+		boolean wasEmpty = pending.isEmpty();
+		ScanHelper.DeviceRecord record = pending.get(device);
+		if(record == null){
+			pending.put(device, new ScanHelper.DeviceRecord(device, rssi, now));
+		}else{
+			record.rssi = rssi;
+			record.timestamp = now;
+		}
+		if(maxResults > 0 && pending.size() >= maxResults)
+			return FULL;
+		return wasEmpty ? STARTED : ADDED;
+	}
+
+	synchronized boolean isEmpty(){
+		return pending.isEmpty();
+	}
+
+	/**
+	 * Take the pending records
+	 * @return records, null if none
+	 */
+	synchronized List<ScanHelper.DeviceRecord> drain(){
+		if(pending.isEmpty())
+			return null;
+
+		List<ScanHelper.DeviceRecord> records = new ArrayList<ScanHelper.DeviceRecord>(pending.values());
+		pending.clear();
+		return records;
+	}
+}
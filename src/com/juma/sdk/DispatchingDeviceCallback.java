@@ -0,0 +1,110 @@
+package com.juma.sdk;
+
+/**
+ * Device callback that delivers through a {@link CallbackDispatcher}.
+ * Received messages are copied before they are queued, the buffer of a notification
+ * is only valid while the SDK delivers it.
+ */
+final class DispatchingDeviceCallback extends JumaDeviceCallback {
+
+	private final JumaDeviceCallback target;
+	private final CallbackDispatcher dispatcher;
+
+	DispatchingDeviceCallback(JumaDeviceCallback target, CallbackDispatcher dispatcher) {
+		this.target = target;
+		this.dispatcher = dispatcher;
+	}
+
+	/**
+	 * Get the callback this one delivers to
+	 * @return callback
+	 */
+	JumaDeviceCallback getTarget(){
+		return target;
+	}
+
+	@Override
+	public void onConnectionStateChange(final int status, final int newState) {
+		dispatcher.dispatch(new Runnable() {
+
+			@Override
+			public void run() {
+				target.onConnectionStateChange(status, newState);
+			}
+		}, false);
+	}
+
+	@Override
+	public void onReceive(final byte type, final byte[] message) {
+		dispatcher.dispatch(new Runnable() {
+
+			@Override
+			public void run() {
+				target.onReceive(type, message);
+			}
+		}, true);
+	}
+
+	@Override
+	public void onReceive(final byte type, byte[] buffer, int offset, final int length) {
+		if(!dispatcher.isAsync()){
+			target.onReceive(type, buffer, offset, length);
+			return;
+		}
+
+		final byte[] message = new byte[length];
+		System.arraycopy(buffer, offset, message, 0, length);
+
+		dispatcher.dispatch(new Runnable() {
+
+			@Override
+			public void run() {
+				target.onReceive(type, message, 0, length);
+			}
+		}, true);
+	}
+
+	@Override
+	public void onSend(final int status) {
+		dispatcher.dispatch(new Runnable() {
+
+			@Override
+			public void run() {
+				target.onSend(status);
+			}
+		}, false);
+	}
+
+	@Override
+	public void onRemoteRssi(final int status, final int rssi) {
+		dispatcher.dispatch(new Runnable() {
+
+			@Override
+			public void run() {
+				target.onRemoteRssi(status, rssi);
+			}
+		}, false);
+	}
+
+	@Override
+	public void onUpdateFirmware(final int status) {
+		dispatcher.dispatch(new Runnable() {
+
+			@Override
+			public void run() {
+				target.onUpdateFirmware(status);
+			}
+		}, false);
+	}
+
+	@Override
+	public void onUpdateFirmwareProgress(final long bytesSent, final long totalBytes, final long bytesPerSecond, final long etaMillis) {
+		dispatcher.dispatch(new Runnable() {
+
+			@Override
+			public void run() {
+				target.onUpdateFirmwareProgress(bytesSent, totalBytes, bytesPerSecond, etaMillis);
+			}
+		}, true);
+	}
+}
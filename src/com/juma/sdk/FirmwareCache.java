@@ -0,0 +1,374 @@
+package com.juma.sdk;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.ref.SoftReference;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Properties;
+
+import android.content.Context;
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Disk cache of downloaded firmware images.
+ * An image is stored with its ETag, Last-Modified and SHA-1, revalidated with a conditional request
+ * and checked against its hash before every use. The least recently used images are evicted
+ * once the cache grows over its size limit.
+ */
+public class FirmwareCache {
+
+	private static final String IMAGE_SUFFIX = ".bin";
+	private static final String META_SUFFIX = ".meta";
+	private static final String TEMP_SUFFIX = ".tmp";
+	private static final String KEY_URL = "url";
+	private static final String KEY_ETAG = "etag";
+	private static final String KEY_LAST_MODIFIED = "lastModified";
+	private static final String KEY_HASH = "hash";
+	private static final String KEY_SIZE = "size";
+	private static final int CONNECT_TIMEOUT = 15000;
+	private static final int READ_TIMEOUT = 15000;
+
+	private final File directory;
+	private final long maxSize;
+	private long maxAge = 0;
+	private final Map<String, SoftReference<CachedSource>> sources = new HashMap<String, SoftReference<CachedSource>>();
+
+	/**
+	 * Create a cache in the app's cache directory
+	 * @param context context
+	 * @param maxSize size limit in bytes
+	 */
+	public FirmwareCache(Context context, long maxSize) {
+		this(new File(context.getCacheDir(), "juma_firmware"), maxSize);
+	}
+
+	/**
+	 * Create a cache
+	 * @param directory cache directory
+	 * @param maxSize size limit in bytes
+	 */
+	public FirmwareCache(File directory, long maxSize) {
+		this.directory = directory;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * Set how long a loaded image is handed out again without revalidating it
+	 * @param maxAge milliseconds, 0 to revalidate every update
+	 */
+	public void setMaxAge(long maxAge){
+		this.maxAge = maxAge;
+	}
+
+	/**
+	 * Get a source for an image URL. Updates started together share one download.
+	 * A loaded image is kept in memory for {@link #setMaxAge(long)} at most, and dropped earlier when memory runs low.
+	 * @param url firmware image
+	 * @return source
+	 */
+	public FirmwareSource getSource(String url){
+		synchronized (sources) {
+			long now = SystemClock.elapsedRealtime();
+			Iterator<SoftReference<CachedSource>> iterator = sources.values().iterator();
+			while (iterator.hasNext()) {
+				CachedSource source = iterator.next().get();
+				if(source == null || !isUsable(source, now))
+					iterator.remove();
+			}
+
+			SoftReference<CachedSource> reference = sources.get(url);
+			CachedSource source = reference == null ? null : reference.get();
+			if(source != null)
+				return source;
+
+			source = new CachedSource(url);
+			sources.put(url, new SoftReference<CachedSource>(source));
+			return source;
+		}
+	}
+
+	private boolean isUsable(CachedSource source, long now){
+		if(source.isFailed())
+			return false;
+		return !source.isComplete() || now - source.loadTime < maxAge;
+	}
+
+	/**
+	 * Get the size of the cached images
+	 * @return bytes
+	 */
+	public synchronized long getSize(){
+		long size = 0;
+		File[] files = directory.listFiles();
+		if(files != null){
+			for (int i = 0; i < files.length; i++) {
+				if(files[i].getName().endsWith(IMAGE_SUFFIX))
+					size += files[i].length();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * Delete every cached image
+	 */
+	public synchronized void clear(){
+		File[] files = directory.listFiles();
+		if(files != null){
+			for (int i = 0; i < files.length; i++) {
+				files[i].delete();
+			}
+		}
+
+		synchronized (sources) {
+			sources.clear();
+		}
+	}
+
+	/**
+	 * Get a verified cached image
+	 * @return image, null if it is missing or does not match its hash
+	 */
+	private synchronized ByteBuffer read(String key, Properties meta){
+		File file = new File(directory, key + IMAGE_SUFFIX);
+		if(meta == null || !file.exists() || file.length() != Long.parseLong(meta.getProperty(KEY_SIZE, "-1"))){
+			remove(key);
+			return null;
+		}
+
+		try {
+			FileInputStream in = new FileInputStream(file);
+			ByteBuffer image;
+			try {
+				image = FirmwareSource.map(in);
+			} finally {
+				in.close();
+			}
+
+			String hash = OtaCheckpoint.hash(image);
+			if(hash == null || !hash.equals(meta.getProperty(KEY_HASH))){
+				Log.e(FirmwareCache.class.getName(), "Corrupt image = "+meta.getProperty(KEY_URL));
+				remove(key);
+				return null;
+			}
+
+			file.setLastModified(System.currentTimeMillis());
+			return image;
+		} catch (IOException e) {
+			Log.e(FirmwareCache.class.getName(), "Read failed = "+meta.getProperty(KEY_URL), e);
+			remove(key);
+			return null;
+		}
+	}
+
+	private synchronized void write(String key, Properties meta, ByteBuffer image){
+		if(image.remaining() > maxSize)
+			return;
+
+		if(!directory.isDirectory() && !directory.mkdirs())
+			return;
+
+		File temp = new File(directory, key + TEMP_SUFFIX);
+		try {
+			FileOutputStream out = new FileOutputStream(temp);
+			try {
+				FileChannel channel = out.getChannel();
+				ByteBuffer source = image.duplicate();
+				while (source.hasRemaining()) {
+					channel.write(source);
+				}
+			} finally {
+				out.close();
+			}
+
+			remove(key);
+			if(!temp.renameTo(new File(directory, key + IMAGE_SUFFIX)))
+				throw new IOException("Rename failed");
+
+			FileOutputStream metaOut = new FileOutputStream(new File(directory, key + META_SUFFIX));
+			try {
+				meta.store(metaOut, null);
+			} finally {
+				metaOut.close();
+			}
+		} catch (IOException e) {
+			Log.e(FirmwareCache.class.getName(), "Write failed = "+meta.getProperty(KEY_URL), e);
+			temp.delete();
+			remove(key);
+			return;
+		}
+
+		evict();
+	}
+
+	private synchronized Properties readMeta(String key){
+		File file = new File(directory, key + META_SUFFIX);
+		if(!file.exists())
+			return null;
+
+		Properties meta = new Properties();
+		try {
+			FileInputStream in = new FileInputStream(file);
+			try {
+				meta.load(in);
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			Log.e(FirmwareCache.class.getName(), "Meta read failed = "+key, e);
+			return null;
+		}
+		return meta;
+	}
+
+	private void remove(String key){
+		new File(directory, key + IMAGE_SUFFIX).delete();
+		new File(directory, key + META_SUFFIX).delete();
+	}
+
+	private void evict(){
+		File[] files = directory.listFiles();
+		if(files == null)
+			return;
+
+		long size = 0;
+		int count = 0;
+		for (int i = 0; i < files.length; i++) {
+			if(files[i].getName().endsWith(IMAGE_SUFFIX)){
+				files[count++] = files[i];
+				size += files[i].length();
+			}
+		}
+
+		if(size <= maxSize)
+			return;
+
+		File[] images = new File[count];
+		System.arraycopy(files, 0, images, 0, count);
+		Arrays.sort(images, new Comparator<File>() {
+
+			@Override
+			public int compare(File lhs, File rhs) {
+				long l = lhs.lastModified();
+				long r = rhs.lastModified();
+				return l < r ? -1 : (l == r ? 0 : 1);
+			}
+		});
+
+		for (int i = 0; i < images.length && size > maxSize; i++) {
+			String name = images[i].getName();
+			size -= images[i].length();
+			remove(name.substring(0, name.length() - IMAGE_SUFFIX.length()));
+		}
+	}
+
+	private class CachedSource extends FirmwareSource {
+
+		private final String url;
+		private final String key;
+		private volatile long loadTime = 0;
+
+		CachedSource(String url) {
+			this.url = url;
+			this.key = OtaCheckpoint.hash(ByteBuffer.wrap(url.getBytes()));
+		}
+
+		@Override
+		void load() throws IOException {
+			Properties meta = readMeta(key);
+			if(meta != null && !url.equals(meta.getProperty(KEY_URL)))
+				meta = null;
+
+			HttpURLConnection http = null;
+			InputStream in = null;
+			int status = -1;
+			try {
+				URLConnection connection = new URL(url).openConnection();
+				connection.setConnectTimeout(CONNECT_TIMEOUT);
+				connection.setReadTimeout(READ_TIMEOUT);
+
+				if(connection instanceof HttpURLConnection)
+					http = (HttpURLConnection) connection;
+
+				if(http != null && meta != null){
+					if(meta.getProperty(KEY_ETAG) != null)
+						http.setRequestProperty("If-None-Match", meta.getProperty(KEY_ETAG));
+					if(meta.getProperty(KEY_LAST_MODIFIED) != null)
+						http.setRequestProperty("If-Modified-Since", meta.getProperty(KEY_LAST_MODIFIED));
+				}
+
+				if(http != null){
+					status = http.getResponseCode();
+					if(status == HttpURLConnection.HTTP_NOT_MODIFIED){
+						if(loadCached(meta))
+							return;
+
+						http.disconnect();
+						http = (HttpURLConnection) new URL(url).openConnection();
+						http.setConnectTimeout(CONNECT_TIMEOUT);
+						http.setReadTimeout(READ_TIMEOUT);
+						connection = http;
+						status = http.getResponseCode();
+					}
+
+					if(status / 100 != 2)
+						throw new IOException("Unexpected response = "+status+" "+url);
+				}
+
+				in = connection.getInputStream();
+				FirmwareSource.readStream(this, in, connection.getContentLength());
+				loadTime = SystemClock.elapsedRealtime();
+
+				Properties stored = new Properties();
+				stored.setProperty(KEY_URL, url);
+				if(connection.getHeaderField("ETag") != null)
+					stored.setProperty(KEY_ETAG, connection.getHeaderField("ETag"));
+				if(connection.getHeaderField("Last-Modified") != null)
+					stored.setProperty(KEY_LAST_MODIFIED, connection.getHeaderField("Last-Modified"));
+				stored.setProperty(KEY_SIZE, String.valueOf(getSize()));
+
+				String hash = getHash();
+				if(hash != null){
+					stored.setProperty(KEY_HASH, hash);
+					write(key, stored, getImage());
+				}
+			} catch (IOException e) {
+				// Only a server that could not be reached falls back to the cached image,
+				// a response such as 404 is an error of its own
+				if(isCancelled() || getImage() != null || status > 0 || !loadCached(meta))
+					throw e;
+
+				Log.e(FirmwareCache.class.getName(), "Revalidation failed, using cached image = "+url, e);
+			} finally {
+				if(in != null)
+					in.close();
+				if(http != null)
+					http.disconnect();
+			}
+		}
+
+		private boolean loadCached(Properties meta){
+			ByteBuffer image = read(key, meta);
+			if(image == null)
+				return false;
+
+			loadTime = SystemClock.elapsedRealtime();
+			setImage(image);
+			setAvailable(image.remaining());
+			return true;
+		}
+	}
+}
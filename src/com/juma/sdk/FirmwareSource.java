@@ -0,0 +1,364 @@
+package com.juma.sdk;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import android.content.Context;
+import android.net.Uri;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+/**
+ * A firmware image for {@link JumaDevice#updateFirmware(FirmwareSource)}.
+ * Local files and content URIs are memory mapped, HTTP images are streamed into memory
+ * and the update starts sending while the rest of the image is still downloading.
+ * A source is loaded once and may be shared by several updates.
+ */
+public abstract class FirmwareSource {
+
+	private static final int CONNECT_TIMEOUT = 15000;
+	private static final int READ_TIMEOUT = 15000;
+	private static final int READ_BUFFER_LENGTH = 4096;
+
+	/**
+	 * Notified when the loaded part of the image grows, the load completes or fails.
+	 * Called on the loading thread.
+	 */
+	interface Listener {
+		void onUpdate(FirmwareSource source);
+	}
+
+	private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+	private volatile ByteBuffer image = null;
+	private volatile int size = -1;
+	private volatile int available = 0;
+	private volatile boolean isFailed = false;
+	private volatile boolean isCancelled = false;
+	private boolean isLoading = false;
+	private String hash = null;
+
+	/**
+	 * Get a source reading a local file through a memory map
+	 * @param file firmware image
+	 * @return source
+	 */
+	public static FirmwareSource fromFile(File file){
+		return new FileSource(file);
+	}
+
+	/**
+	 * Get a source reading a content URI through a memory map,
+	 * or through its stream if the provider does not hand out a seekable file
+	 * @param context context
+	 * @param uri firmware image
+	 * @return source
+	 */
+	public static FirmwareSource fromUri(Context context, Uri uri){
+		return new UriSource(context, uri);
+	}
+
+	/**
+	 * Get a source downloading an HTTP URL
+	 * @param url firmware image
+	 * @return source
+	 */
+	public static FirmwareSource fromUrl(String url){
+		return new UrlSource(url);
+	}
+
+	/**
+	 * Get a source over an image already in memory. The buffer is not copied.
+	 * @param image firmware image, from its position to its limit
+	 * @return source
+	 */
+	public static FirmwareSource fromBuffer(ByteBuffer image){
+		return new BufferSource(image);
+	}
+
+	/**
+	 * Load the image on a thread of its own
+	 * @throws IOException
+	 */
+	abstract void load() throws IOException;
+
+	/**
+	 * Start loading the image unless it is loading or loaded already.
+	 * The listener is notified at once if part of the image is available.
+	 * @param listener listener
+	 */
+	void open(Listener listener){
+		boolean isStarting;
+		synchronized (this) {
+			listeners.add(listener);
+
+			isStarting = !isLoading && (image == null || isFailed);
+			if(isStarting){
+				isLoading = true;
+				isFailed = false;
+				isCancelled = false;
+				image = null;
+				size = -1;
+				available = 0;
+			}
+		}
+
+		if(!isStarting){
+			listener.onUpdate(this);
+			return;
+		}
+
+		new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					load();
+				} catch (IOException e) {
+					Log.e(FirmwareSource.class.getName(), "Load failed", e);
+					isFailed = true;
+				}
+
+				synchronized (FirmwareSource.this) {
+					isLoading = false;
+				}
+				notifyListeners();
+			}
+		}, "JumaFirmwareSource").start();
+	}
+
+	/**
+	 * Stop notifying a listener. A download nobody listens to anymore is cancelled.
+	 * @param listener listener
+	 */
+	void close(Listener listener){
+		synchronized (this) {
+			listeners.remove(listener);
+			if(listeners.isEmpty() && isLoading)
+				isCancelled = true;
+		}
+	}
+
+	/**
+	 * Get the image buffer, only the first {@link #getAvailable()} bytes are valid while loading
+	 * @return image, null if the size is not known yet
+	 */
+	ByteBuffer getImage(){
+		return image;
+	}
+
+	int getAvailable(){
+		return available;
+	}
+
+	int getSize(){
+		return size;
+	}
+
+	boolean isComplete(){
+		return image != null && available == size;
+	}
+
+	boolean isFailed(){
+		return isFailed;
+	}
+
+	boolean isCancelled(){
+		return isCancelled;
+	}
+
+	/**
+	 * Get the hash of the complete image, computed once
+	 * @return SHA-1 as hex, null while loading
+	 */
+	synchronized String getHash(){
+		if(hash == null && isComplete())
+			hash = OtaCheckpoint.hash(image);
+		return hash;
+	}
+
+	void setImage(ByteBuffer image){
+		this.size = image.remaining();
+		this.image = image;
+	}
+
+	void setAvailable(int available){
+		this.available = available;
+		notifyListeners();
+	}
+
+	private void notifyListeners(){
+		for (Listener listener : listeners) {
+			listener.onUpdate(this);
+		}
+	}
+
+	/**
+	 * Map a file, the mapping stays valid after the stream is closed
+	 * @param in file
+	 * @return image
+	 * @throws IOException
+	 */
+	static ByteBuffer map(FileInputStream in) throws IOException{
+		FileChannel channel = in.getChannel();
+		return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+	}
+
+	private static class BufferSource extends FirmwareSource {
+
+		private final ByteBuffer buffer;
+
+		BufferSource(ByteBuffer buffer) {
+			this.buffer = buffer.duplicate();
+		}
+
+		@Override
+		void load() throws IOException {
+			setImage(buffer);
+			setAvailable(buffer.remaining());
+		}
+	}
+
+	private static class FileSource extends FirmwareSource {
+
+		private final File file;
+
+		FileSource(File file) {
+			this.file = file;
+		}
+
+		@Override
+		void load() throws IOException {
+			FileInputStream in = new FileInputStream(file);
+			ByteBuffer buffer;
+			try {
+				buffer = map(in);
+			} finally {
+				in.close();
+			}
+
+			setImage(buffer);
+			setAvailable(buffer.remaining());
+		}
+	}
+
+	private static class UriSource extends FirmwareSource {
+
+		private final Context context;
+		private final Uri uri;
+
+		UriSource(Context context, Uri uri) {
+			this.context = context;
+			this.uri = uri;
+		}
+
+		@Override
+		void load() throws IOException {
+			ParcelFileDescriptor descriptor = context.getContentResolver().openFileDescriptor(uri, "r");
+			if(descriptor != null){
+				try {
+					if(descriptor.getStatSize() > 0){
+						ByteBuffer buffer = map(new FileInputStream(descriptor.getFileDescriptor()));
+						setImage(buffer);
+						setAvailable(buffer.remaining());
+						return;
+					}
+				} catch (IOException e) {
+					Log.e(FirmwareSource.class.getName(), "Map failed = "+uri, e);
+				} finally {
+					descriptor.close();
+				}
+			}
+
+			InputStream in = context.getContentResolver().openInputStream(uri);
+			if(in == null)
+				throw new IOException("No stream = "+uri);
+
+			try {
+				readStream(this, in, -1);
+			} finally {
+				in.close();
+			}
+		}
+	}
+
+	private static class UrlSource extends FirmwareSource {
+
+		private final String url;
+
+		UrlSource(String url) {
+			this.url = url;
+		}
+
+		@Override
+		void load() throws IOException {
+			URLConnection connection = new URL(url).openConnection();
+			connection.setConnectTimeout(CONNECT_TIMEOUT);
+			connection.setReadTimeout(READ_TIMEOUT);
+
+			InputStream in = connection.getInputStream();
+			try {
+				readStream(this, in, connection.getContentLength());
+			} finally {
+				in.close();
+			}
+		}
+	}
+
+	/**
+	 * Read a stream into memory. With a known length the image is published as it arrives,
+	 * otherwise it is published once the stream ends.
+	 * @param source source to publish to
+	 * @param in stream
+	 * @param length stream length, -1 if unknown
+	 * @throws IOException
+	 */
+	static void readStream(FirmwareSource source, InputStream in, int length) throws IOException{
+		if(length >= 0){
+			byte[] data = new byte[length];
+			source.setImage(ByteBuffer.wrap(data));
+
+			int count = 0;
+			while (count < length) {
+				if(source.isCancelled())
+					throw new IOException("Cancelled");
+
+				int read = in.read(data, count, Math.min(READ_BUFFER_LENGTH, length - count));
+				if(read < 0)
+					throw new IOException("Truncated = "+count+"/"+length);
+
+				count += read;
+				source.setAvailable(count);
+			}
+			return;
+		}
+
+		byte[] data = new byte[READ_BUFFER_LENGTH * 16];
+		int count = 0;
+		while (true) {
+			if(source.isCancelled())
+				throw new IOException("Cancelled");
+
+			if(count == data.length){
+				byte[] grown = new byte[data.length * 2];
+				System.arraycopy(data, 0, grown, 0, count);
+				data = grown;
+			}
+
+			int read = in.read(data, count, data.length - count);
+			if(read < 0)
+				break;
+			count += read;
+		}
+
+		source.setImage(ByteBuffer.wrap(data, 0, count));
+		source.setAvailable(count);
+	}
+}
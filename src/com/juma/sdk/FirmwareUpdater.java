@@ -0,0 +1,351 @@
+package com.juma.sdk;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import android.os.Handler;
+
+/**
+ * Updates the firmware of several devices, a few at a time.
+ * Every device is connected, updated from the same {@link FirmwareSource} and disconnected again,
+ * so the image is loaded once and shared by all updates. A failed update is retried and resumes
+ * from the last acknowledged packet, see {@link JumaDevice#setFirmwareResumable(boolean)}.
+ * The devices are connected one at a time through a {@link JumaDeviceManager} with a callback of the updater,
+ * their own callback is not called meanwhile and is put back once their update ends.
+ */
+public class FirmwareUpdater {
+
+	/**
+	 * Result of a device whose update has not ended yet
+	 */
+	public static final int PENDING = -1;
+
+	private static final int MAX_CONCURRENT = 7;
+
+	/**
+	 * Progress and results of the updates, called on the SDK thread.
+	 */
+	public static abstract class Callback {
+		public void onDeviceProgress(JumaDevice device, long bytesSent, long totalBytes){};
+		public void onDeviceComplete(JumaDevice device, int status, int attempts){};
+		public void onProgress(long bytesSent, long totalBytes, int completed, int total){};
+		public void onComplete(Map<UUID, Integer> results){};
+	}
+
+	private static final int PHASE_WAITING = 0;
+	private static final int PHASE_CONNECTING = 1;
+	private static final int PHASE_UPDATING = 2;
+	private static final int PHASE_DISCONNECTING = 3;
+	private static final int PHASE_DONE = 4;
+
+	private final Handler handler = SdkThread.getHandler();
+	private final JumaDeviceManager manager = new JumaDeviceManager();
+	private final FirmwareSource source;
+	private final Callback callback;
+	private final List<Task> tasks = new ArrayList<Task>();
+	private int maxConcurrent = 4;
+	private int maxAttempts = 3;
+	private long retryDelay = 2000;
+	private int running = 0;
+	private int completed = 0;
+	private boolean isStarted = false;
+	private boolean isCancelled = false;
+	private volatile boolean isDone = false;
+
+	/**
+	 * Create an updater
+	 * @param devices devices to update
+	 * @param source firmware image
+	 * @param callback progress and results, may be null
+	 */
+	public FirmwareUpdater(List<JumaDevice> devices, FirmwareSource source, Callback callback) {
+		this.source = source;
+		this.callback = callback;
+		manager.setMaxConnections(maxConcurrent);
+		for (int i = 0; i < devices.size(); i++) {
+			tasks.add(new Task(devices.get(i)));
+		}
+	}
+
+	/**
+	 * Set how many devices are updated at the same time. Each one holds a GATT connection,
+	 * the value is capped to what Android connects at once.
+	 * @param maxConcurrent devices, 1 to 7
+	 */
+	public void setMaxConcurrent(int maxConcurrent){
+		this.maxConcurrent = Math.max(1, Math.min(maxConcurrent, MAX_CONCURRENT));
+		manager.setMaxConnections(this.maxConcurrent);
+	}
+
+	/**
+	 * Set how many times the update of a device is tried
+	 * @param maxAttempts attempts, at least 1
+	 */
+	public void setMaxAttempts(int maxAttempts){
+		this.maxAttempts = Math.max(1, maxAttempts);
+	}
+
+	/**
+	 * Set the delay before a failed device is tried again
+	 * @param millis delay
+	 */
+	public void setRetryDelay(long millis){
+		this.retryDelay = Math.max(0, millis);
+	}
+
+	/**
+	 * Start the updates
+	 * @return result.true/false
+	 */
+	public boolean start(){
+		synchronized (this) {
+			if(isStarted || source == null)
+				return false;
+			isStarted = true;
+		}
+
+		handler.post(new Runnable() {
+
+			@Override
+			public void run() {
+				if(isCancelled)
+					return;
+
+				source.open(sourceListener);
+				schedule();
+			}
+		});
+		return true;
+	}
+
+	/**
+	 * Cancel the updates. Running updates are cancelled, waiting devices are not connected.
+	 * Cancelled before {@link #start()}, the image is not loaded at all.
+	 */
+	public void cancel(){
+		handler.post(new Runnable() {
+
+			@Override
+			public void run() {
+				if(isDone || isCancelled)
+					return;
+
+				isCancelled = true;
+				for (int i = 0; i < tasks.size(); i++) {
+					Task task = tasks.get(i);
+					if(task.phase == PHASE_WAITING)
+						finish(task, JumaDevice.CANCELLED);
+					else if(task.phase == PHASE_UPDATING)
+						task.device.cancelFirmwareUpdate();
+				}
+				checkDone();
+			}
+		});
+	}
+
+	/**
+	 * Get the result of a device
+	 * @param device device
+	 * @return {@link JumaDevice#SUCCESS}, {@link JumaDevice#ERROR}, {@link JumaDevice#CANCELLED} or {@link #PENDING}
+	 */
+	public int getResult(JumaDevice device){
+		for (int i = 0; i < tasks.size(); i++) {
+			Task task = tasks.get(i);
+			if(task.device == device)
+				return task.result;
+		}
+		return PENDING;
+	}
+
+	/**
+	 * Get the update status
+	 * @return true once every device has a result
+	 */
+	public boolean isDone(){
+		return isDone;
+	}
+
+	private void schedule(){
+		for (int i = 0; i < tasks.size() && running < maxConcurrent && !isCancelled; i++) {
+			Task task = tasks.get(i);
+			if(task.phase == PHASE_WAITING && !task.isDelayed){
+				running++;
+				task.attempt();
+			}
+		}
+		checkDone();
+	}
+
+	private void finish(Task task, int status){
+		task.phase = PHASE_DONE;
+		task.result = status;
+		completed++;
+
+		if(callback != null)
+			callback.onDeviceComplete(task.device, status, task.attempts);
+		reportProgress();
+	}
+
+	private void checkDone(){
+		if(isDone || completed < tasks.size())
+			return;
+
+		isDone = true;
+		source.close(sourceListener);
+
+		if(callback != null){
+			Map<UUID, Integer> results = new LinkedHashMap<UUID, Integer>();
+			for (int i = 0; i < tasks.size(); i++) {
+				results.put(tasks.get(i).device.getUuid(), tasks.get(i).result);
+			}
+			callback.onComplete(results);
+		}
+	}
+
+	private void reportProgress(){
+		if(callback == null)
+			return;
+
+		long size = Math.max(source.getSize(), 0);
+		long bytesSent = 0;
+		for (int i = 0; i < tasks.size(); i++) {
+			Task task = tasks.get(i);
+			bytesSent += task.result == JumaDevice.SUCCESS ? size : task.bytesSent;
+		}
+		callback.onProgress(bytesSent, size * tasks.size(), completed, tasks.size());
+	}
+
+	private final FirmwareSource.Listener sourceListener = new FirmwareSource.Listener() {
+
+		@Override
+		public void onUpdate(FirmwareSource source) {
+		}
+	};
+
+	/**
+	 * Update of one device, its state is only touched on the SDK thread
+	 */
+	private class Task {
+
+		final JumaDevice device;
+		int phase = PHASE_WAITING;
+		int result = PENDING;
+		int attempts = 0;
+		int status = JumaDevice.ERROR;
+		long bytesSent = 0;
+		boolean isDelayed = false;
+		JumaDeviceCallback previousCallback = null;
+
+		Task(JumaDevice device) {
+			this.device = device;
+		}
+
+		void attempt(){
+			attempts++;
+			status = JumaDevice.ERROR;
+			phase = PHASE_CONNECTING;
+
+			previousCallback = device.getCallback();
+			manager.connect(device, deviceCallback);
+		}
+
+		/**
+		 * End the attempt once the device is disconnected
+		 */
+		void end(){
+			running--;
+			device.setCallback(previousCallback);
+
+			if(status == JumaDevice.SUCCESS || status == JumaDevice.CANCELLED || isCancelled || attempts >= maxAttempts){
+				finish(this, isCancelled && status != JumaDevice.SUCCESS ? JumaDevice.CANCELLED : status);
+				schedule();
+				return;
+			}
+
+			phase = PHASE_WAITING;
+			isDelayed = true;
+			handler.postDelayed(new Runnable() {
+
+				@Override
+				public void run() {
+					isDelayed = false;
+					schedule();
+				}
+			}, retryDelay);
+			schedule();
+		}
+
+		void disconnect(int status){
+			this.status = status;
+			phase = PHASE_DISCONNECTING;
+
+			if(device.isConnected())
+				manager.disconnect(device);
+			else
+				end();
+		}
+
+		final JumaDeviceCallback deviceCallback = new JumaDeviceCallback() {
+
+			@Override
+			public void onConnectionStateChange(final int status, final int newState) {
+				handler.post(new Runnable() {
+
+					@Override
+					public void run() {
+						if(phase == PHASE_CONNECTING){
+							if(status != JumaDevice.SUCCESS){
+								end();
+							}else if(newState == JumaDevice.STATE_CONNECTED){
+								if(isCancelled){
+									disconnect(JumaDevice.CANCELLED);
+								}else if(device.updateFirmware(source)){
+									phase = PHASE_UPDATING;
+								}else{
+									disconnect(JumaDevice.ERROR);
+								}
+							}
+						}else if(newState == JumaDevice.STATE_DISCONNECTED){
+							if(phase == PHASE_UPDATING){
+								Task.this.status = JumaDevice.ERROR;
+								end();
+							}else if(phase == PHASE_DISCONNECTING){
+								end();
+							}
+						}
+					}
+				});
+			}
+
+			@Override
+			public void onUpdateFirmwareProgress(final long bytesSent, final long totalBytes, long bytesPerSecond, long etaMillis) {
+				handler.post(new Runnable() {
+
+					@Override
+					public void run() {
+						Task.this.bytesSent = bytesSent;
+
+						if(callback != null)
+							callback.onDeviceProgress(device, bytesSent, totalBytes);
+						reportProgress();
+					}
+				});
+			}
+
+			@Override
+			public void onUpdateFirmware(final int status) {
+				handler.post(new Runnable() {
+
+					@Override
+					public void run() {
+						if(phase == PHASE_UPDATING)
+							disconnect(status);
+					}
+				});
+			}
+		};
+	}
+}
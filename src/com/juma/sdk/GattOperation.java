@@ -0,0 +1,65 @@
+package com.juma.sdk;
+
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+
+/**
+ * A single GATT request waiting in a {@link GattScheduler}.
+ */
+final class GattOperation {
+
+	static final int WRITE_CHARACTERISTIC = 0;
+	static final int READ_RSSI = 1;
+	static final int WRITE_DESCRIPTOR = 2;
+	static final int REQUEST_MTU = 3;
+	static final int CONNECTION_PRIORITY = 4;
+
+	final int kind;
+	final BluetoothGattCharacteristic characteristic;
+	final BluetoothGattDescriptor descriptor;
+	final byte[] value;
+	final int writeType;
+	final int argument;
+	long timeout = 0;
+	int retries = -1;
+	int attempts = 0;
+
+	private GattOperation(int kind, BluetoothGattCharacteristic characteristic, BluetoothGattDescriptor descriptor, byte[] value, int writeType, int argument) {
+		this.kind = kind;
+		this.characteristic = characteristic;
+		this.descriptor = descriptor;
+		this.value = value;
+		this.writeType = writeType;
+		this.argument = argument;
+	}
+
+	/**
+	 * Write a characteristic with its own write type
+	 */
+	static GattOperation write(BluetoothGattCharacteristic characteristic, byte[] value){
+		return new GattOperation(WRITE_CHARACTERISTIC, characteristic, null, value, -1, 0);
+	}
+
+	/**
+	 * Write a characteristic without response
+	 */
+	static GattOperation writeNoResponse(BluetoothGattCharacteristic characteristic, byte[] value){
+		return new GattOperation(WRITE_CHARACTERISTIC, characteristic, null, value, BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE, 0);
+	}
+
+	static GattOperation readRssi(){
+		return new GattOperation(READ_RSSI, null, null, null, -1, 0);
+	}
+
+	static GattOperation writeDescriptor(BluetoothGattDescriptor descriptor, byte[] value){
+		return new GattOperation(WRITE_DESCRIPTOR, null, descriptor, value, -1, 0);
+	}
+
+	static GattOperation requestMtu(int mtu){
+		return new GattOperation(REQUEST_MTU, null, null, null, -1, mtu);
+	}
+
+	static GattOperation requestConnectionPriority(int priority){
+		return new GattOperation(CONNECTION_PRIORITY, null, null, null, -1, priority);
+	}
+}
@@ -0,0 +1,265 @@
+package com.juma.sdk;
+
+import java.util.ArrayDeque;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothGatt;
+import android.os.Build;
+
+/**
+ * Issues the GATT operations of one connection one at a time.
+ * The next operation starts as soon as the previous one completes, fails or times out.
+ * Failed attempts are retried with an exponential back-off before the operation is reported as failed.
+ * An operation that times out is not retried, the stack may still carry it out. After a write times out
+ * nothing more is issued until the connection is attached again, a late write would reach the device
+ * out of order, so the connection is better dropped.
+ */
+final class GattScheduler {
+
+	/**
+	 * Status reported when an operation did not complete in time
+	 */
+	static final int STATUS_TIMEOUT = -1;
+
+	/**
+	 * Status reported when an operation could not be issued
+	 */
+	static final int STATUS_NOT_ISSUED = -2;
+
+	private static final int PENDING = Integer.MIN_VALUE;
+
+	private static final long RETRY_DELAY = 5;
+	private static final long MAX_RETRY_DELAY = 320;
+
+	interface Listener{
+		void onOperationComplete(GattOperation operation, int status, int value);
+	}
+
+	private final Listener listener;
+	private final ArrayDeque<GattOperation> operations = new ArrayDeque<GattOperation>();
+	private GattOperation current = null;
+	private BluetoothGatt gatt = null;
+	private boolean isStalled = false;
+	private int staleKind = -1;
+
+	private long timeout = 3000;
+	private int retries = 2;
+
+	GattScheduler(Listener listener) {
+		this.listener = listener;
+	}
+
+	synchronized void setTimeout(long timeout){
+		this.timeout = timeout;
+	}
+
+	synchronized void setRetries(int retries){
+		this.retries = retries;
+	}
+
+	/**
+	 * Start issuing operations on a connection
+	 */
+	void attach(BluetoothGatt gatt){
+		synchronized (this) {
+			this.gatt = gatt;
+			isStalled = false;
+			staleKind = -1;
+		}
+		drain();
+	}
+
+	/**
+	 * Drop the connection and every pending operation, nothing is reported
+	 */
+	synchronized void detach(){
+		gatt = null;
+		current = null;
+		isStalled = false;
+		staleKind = -1;
+		operations.clear();
+		SdkThread.getHandler().removeCallbacks(timeoutTask);
+		SdkThread.getHandler().removeCallbacks(retryTask);
+	}
+
+	/**
+	 * Get the number of operations not completed yet
+	 * @return pending operations, including the one in flight
+	 */
+	synchronized int size(){
+		return operations.size() + (current == null ? 0 : 1);
+	}
+
+	void enqueue(GattOperation operation){
+		synchronized (this) {
+			operations.add(operation);
+			if(current != null)
+				return;
+		}
+		drain();
+	}
+
+	/**
+	 * Report the completion of an operation from the GATT callback
+	 * @param kind completed operation kind
+	 * @param status GATT status
+	 * @param value rssi or mtu, 0 otherwise
+	 */
+	void complete(int kind, int status, int value){
+		GattOperation operation;
+		synchronized (this) {
+			if(kind == staleKind){
+				staleKind = -1;
+				return;
+			}
+
+			if(current == null || current.kind != kind)
+				return;
+
+			SdkThread.getHandler().removeCallbacks(timeoutTask);
+
+			if(status != BluetoothGatt.GATT_SUCCESS && canRetry(current)){
+				scheduleRetry(current);
+				return;
+			}
+
+			operation = current;
+			current = null;
+		}
+
+		listener.onOperationComplete(operation, status, value);
+		drain();
+	}
+
+	private void drain(){
+		while (true) {
+			GattOperation done;
+			int status;
+			synchronized (this) {
+				if(current != null || gatt == null || isStalled)
+					return;
+
+				current = operations.poll();
+				if(current == null)
+					return;
+
+				status = issueCurrent();
+				if(status == PENDING)
+					return;
+
+				done = current;
+				current = null;
+			}
+
+			listener.onOperationComplete(done, status, 0);
+		}
+	}
+
+	private void retry(){
+		GattOperation done;
+		int status;
+		synchronized (this) {
+			if(current == null || gatt == null)
+				return;
+
+			status = issueCurrent();
+			if(status == PENDING)
+				return;
+
+			done = current;
+			current = null;
+		}
+
+		listener.onOperationComplete(done, status, 0);
+		drain();
+	}
+
+	/**
+	 * Issue the current operation, called with the lock held
+	 * @return {@link #PENDING} while a callback, timeout or retry is awaited, the final status otherwise
+	 */
+	private int issueCurrent(){
+		if(issue(current)){
+			if(current.kind == GattOperation.CONNECTION_PRIORITY)
+				return BluetoothGatt.GATT_SUCCESS;
+
+			SdkThread.getHandler().postDelayed(timeoutTask, current.timeout > 0 ? current.timeout : timeout);
+			return PENDING;
+		}
+
+		if(canRetry(current)){
+			scheduleRetry(current);
+			return PENDING;
+		}
+
+		return STATUS_NOT_ISSUED;
+	}
+
+	private boolean canRetry(GattOperation operation){
+		return operation.attempts <= (operation.retries >= 0 ? operation.retries : retries);
+	}
+
+	private void scheduleRetry(GattOperation operation){
+		long delay = RETRY_DELAY << Math.min(operation.attempts - 1, 6);
+		SdkThread.getHandler().postDelayed(retryTask, Math.min(delay, MAX_RETRY_DELAY));
+	}
+
+	@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+	private boolean issue(GattOperation operation){
+		operation.attempts++;
+
+		switch (operation.kind) {
+		case GattOperation.WRITE_CHARACTERISTIC:
+			operation.characteristic.setValue(operation.value);
+			if(operation.writeType < 0)
+				return gatt.writeCharacteristic(operation.characteristic);
+
+			int writeType = operation.characteristic.getWriteType();
+			operation.characteristic.setWriteType(operation.writeType);
+			boolean result = gatt.writeCharacteristic(operation.characteristic);
+			operation.characteristic.setWriteType(writeType);
+			return result;
+		case GattOperation.READ_RSSI:
+			return gatt.readRemoteRssi();
+		case GattOperation.WRITE_DESCRIPTOR:
+			operation.descriptor.setValue(operation.value);
+			return gatt.writeDescriptor(operation.descriptor);
+		case GattOperation.REQUEST_MTU:
+			return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && gatt.requestMtu(operation.argument);
+		case GattOperation.CONNECTION_PRIORITY:
+			return Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && gatt.requestConnectionPriority(operation.argument);
+		}
+		return false;
+	}
+
+	private Runnable timeoutTask = new Runnable() {
+
+		@Override
+		public void run() {
+			GattOperation operation;
+			synchronized (GattScheduler.this) {
+				if(current == null)
+					return;
+
+				operation = current;
+				current = null;
+
+				if(operation.kind == GattOperation.WRITE_CHARACTERISTIC || operation.kind == GattOperation.WRITE_DESCRIPTOR)
+					isStalled = true;
+				else
+					staleKind = operation.kind;
+			}
+
+			listener.onOperationComplete(operation, STATUS_TIMEOUT, 0);
+			drain();
+		}
+	};
+
+	private Runnable retryTask = new Runnable() {
+
+		@Override
+		public void run() {
+			retry();
+		}
+	};
+}
@@ -1,19 +1,15 @@
 package com.juma.sdk;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.net.URL;
-import java.net.URLConnection;
-import java.security.SecureRandom;
+import java.nio.ByteBuffer;
+import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 
-import javax.crypto.Cipher;
-import javax.crypto.KeyGenerator;
-import javax.crypto.SecretKey;
-import javax.crypto.spec.SecretKeySpec;
-
-import org.apache.http.util.ByteArrayBuffer;
-
-import android.annotation.SuppressLint;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothGatt;
 import android.bluetooth.BluetoothGattCallback;
@@ -22,6 +18,8 @@ import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.bluetooth.BluetoothManager;
 import android.content.Context;
+import android.os.Build;
+import android.os.SystemClock;
 import android.util.Log;
 
 public class JumaDevice {
@@ -31,6 +29,7 @@ public class JumaDevice {
 
 	private String name = null;
 	private UUID uuid = null;
+	private String address = null;
 	private Context context = null;
 	private JumaDeviceCallback callback = null;
 	private ScanHelper scanHelper = null;
@@ -63,24 +62,69 @@ public class JumaDevice {
 	private static final byte OTA_HEADER_DATA = 0X02;
 
 	private static final int MESSAGE_MAX_LENGTH = 198;
-
-	private byte[] readyMessage = null;
-	private byte[] firmwareData = null;
-	private int index = 0;
+	private static final int NO_RESPONSE_RETRIES = 8;
+	private static final int MAX_FIRMWARE_WINDOW = 8;
+	private static final int MAX_FIRMWARE_RETRANSMISSIONS = 5;
+	private static final int FIRMWARE_CHECKPOINT_INTERVAL = 16;
+	private static final int DEFAULT_MTU = 23;
+	private static final int ATT_HEADER_LENGTH = 3;
+
+	private OutboundMessage readyMessage = null;
+	private OutboundMessage sendingMessage = null;
+	private final PacketPool packetPool = new PacketPool();
+	private boolean isSending = false;
+	private boolean isHighThroughput = false;
+	private int requestedMtu = 517;
+	private int mtu = DEFAULT_MTU;
+	private boolean isAutoConnectionPriority = true;
+	private int connectionPriority = CONNECTION_PRIORITY_BALANCED;
+	private int idleConnectionPriority = CONNECTION_PRIORITY_BALANCED;
+	private long connectionPriorityIdleTimeout = 2000;
+	private long lastSendTime = 0;
+	private final SendQueue sendQueue = new SendQueue();
+	private final CallbackDispatcher dispatcher = new CallbackDispatcher();
+	private final MessageAssembler eventAssembler = new MessageAssembler();
+	private final MessageAssembler bulkInAssembler = new MessageAssembler();
+	private long reassemblyTimeout = 1000;
+	private final MessageRouter router = new MessageRouter();
+	private final List<MessageSubscription> subscriptions = new CopyOnWriteArrayList<MessageSubscription>();
+	private final GattScheduler scheduler;
+	private OtaSession otaSession = null;
+	private int firmwareWindowSize = 1;
+	private boolean isFirmwareResumable = true;
+	private long firmwareAckTimeout = 10000;
+	private FirmwareSource firmwareSource = null;
+	private FirmwareCache firmwareCache = null;
 	private boolean isUpdating = false;
 
 	private static final String SDK_VERSION = "02.00.00.01.151203";
 	
 	public static final int SUCCESS = 0;
 	public static final int ERROR = 1;
+	public static final int CANCELLED = 2;
 	public static final int STATE_CONNECTED = 0;
 	public static final int STATE_DISCONNECTED = 1;
+	public static final int OVERFLOW_REJECT = 0;
+	public static final int OVERFLOW_BLOCK = 1;
+	public static final int OVERFLOW_DROP_OLDEST = 2;
+	public static final int CONNECTION_PRIORITY_BALANCED = 0;
+	public static final int CONNECTION_PRIORITY_HIGH = 1;
+	public static final int CONNECTION_PRIORITY_LOW_POWER = 2;
+
+	/**
+	 * Handler of the received messages of one or more types, see {@link JumaDevice#addMessageHandler(byte, MessageHandler)}.
+	 * The buffer is only valid during the call, as for {@link JumaDeviceCallback#onReceive(byte, byte[], int, int)}.
+	 */
+	public interface MessageHandler{
+		public void onMessage(JumaDevice device, byte type, byte[] buffer, int offset, int length);
+	}
 
 	JumaDevice(Context context, ScanHelper scanHelper, String name, UUID uuid) {
 		this.name = name;
 		this.uuid = uuid;
 		this.context = context;
 		this.scanHelper = scanHelper;
+		this.scheduler = new GattScheduler(operationListener);
 	}
 
 	/**
@@ -104,7 +148,16 @@ public class JumaDevice {
 	 * @param callback
 	 * @return result.true/false
 	 */
-	public synchronized boolean connect(JumaDeviceCallback callback){
+	public boolean connect(JumaDeviceCallback callback){
+		return connectDirect(wrapCallback(callback));
+	}
+
+	/**
+	 * Connect with a callback that is called as is, on the Bluetooth threads
+	 * @param callback callback, not passed through the callback executor
+	 * @return result.true/false
+	 */
+	synchronized boolean connectDirect(JumaDeviceCallback callback){
 		if(isConnecting)
 			return false;
 
@@ -125,8 +178,8 @@ public class JumaDevice {
 		this.callback = callback;
 
 		if(isConnected){
-			if(callback != null)
-				callback.onConnectionStateChange(SUCCESS, STATE_CONNECTED);
+			if(this.callback != null)
+				this.callback.onConnectionStateChange(SUCCESS, STATE_CONNECTED);
 			return true;
 		}
 
@@ -135,7 +188,7 @@ public class JumaDevice {
 		try {
 			if(bluetoothGatt != null)
 				bluetoothGatt.close();
-			bluetoothGatt = bluetoothAdapter.getRemoteDevice(IDDecrypt(uuid.toString(), context)).connectGatt(context, false, gattCallback);
+			bluetoothGatt = bluetoothAdapter.getRemoteDevice(getAddress()).connectGatt(context, false, gattCallback);
 		} catch (Exception e) {
 			isConnecting = false;
 			return false;
@@ -144,6 +197,54 @@ public class JumaDevice {
 		return true;
 	}
 
+	/**
+	 * Get the callback as it is called, already wrapped in the callback executor
+	 * @return callback
+	 */
+	synchronized JumaDeviceCallback getCallback(){
+		return callback;
+	}
+
+	/**
+	 * Replace the callback without connecting, e.g. to give a borrowed device its callback back
+	 * @param callback callback as returned by {@link #getCallback()}
+	 */
+	synchronized void setCallback(JumaDeviceCallback callback){
+		this.callback = callback;
+	}
+
+	/**
+	 * Wrap a callback so it is called through the callback executor of this device
+	 * @param callback callback
+	 * @return wrapped callback, null if the callback is null
+	 */
+	JumaDeviceCallback wrapCallback(JumaDeviceCallback callback){
+		return callback == null ? null : new DispatchingDeviceCallback(callback, dispatcher);
+	}
+
+	/**
+	 * Abort a connection attempt that did not complete, reported as a failed connect
+	 * @return result.true/false
+	 */
+	synchronized boolean cancelConnect(){
+		if(!isConnecting)
+			return false;
+
+		isConnecting = false;
+
+		BluetoothGatt gatt = bluetoothGatt;
+		if(gatt != null){
+			gatt.disconnect();
+			gatt.close();
+		}
+
+		clear();
+
+		if(callback != null)
+			callback.onConnectionStateChange(ERROR, STATE_CONNECTED);
+		return true;
+	}
+
 	/**
 	 * Disconnect device
 	 * @return result.true/false
@@ -176,7 +277,7 @@ public class JumaDevice {
 		}
 
 		if(isConnected && bluetoothGatt != null){
-			bluetoothGatt.readRemoteRssi();
+			scheduler.enqueue(GattOperation.readRssi());
 			return true;
 		}
 
@@ -184,30 +285,278 @@ public class JumaDevice {
 	}
 
 	/**
-	 * Send message
-	 * @param type message type
+	 * Set how long a GATT operation may take before it is retried or failed
+	 * @param millis timeout in milliseconds
+	 */
+	public void setGattTimeout(long millis){
+		scheduler.setTimeout(millis);
+	}
+
+	/**
+	 * Set how many times a failed GATT operation is retried
+	 * @param retries retry count
+	 */
+	public void setGattRetries(int retries){
+		scheduler.setRetries(retries);
+	}
+
+	/**
+	 * Send message.
+	 * The message array is read while the packets go out, keep it unchanged until onSend.
+	 * @param type message type, 0 to 127
 	 * @param message message data
 	 * @return result.true/false
 	 */
 	public boolean send(byte type, byte[] message){
 
-		if(Integer.parseInt(toHex(new byte[]{type}), 16) > 128){
+		if((type & 0x80) != 0){
 			return false;
 		}
 
 		return readySend(type, message);
 	}
 
-	private boolean readySend(byte type, byte[] message){
-		if (!checkBluetoothState()) {
+	/**
+	 * Set the executor the device callbacks run on, instead of the Bluetooth thread.
+	 * Callbacks keep their order and wait in a bounded queue, so slow callbacks never hold up
+	 * the SDK. When the queue is full, received messages and firmware progress are dropped and counted,
+	 * other callbacks are always delivered.
+	 * @param executor executor, null to call back on the Bluetooth thread
+	 * @param queueCapacity callbacks that may wait
+	 */
+	public void setCallbackExecutor(Executor executor, int queueCapacity){
+		dispatcher.setExecutor(executor, queueCapacity);
+	}
+
+	/**
+	 * Run the device callbacks on the SDK callback thread, see {@link #setCallbackExecutor(Executor, int)}
+	 * @param queueCapacity callbacks that may wait
+	 */
+	public void setDedicatedCallbackThread(int queueCapacity){
+		dispatcher.setExecutor(SdkThread.getCallbackExecutor(), queueCapacity);
+	}
+
+	/**
+	 * Get the number of callbacks waiting for the callback executor
+	 * @return queue depth
+	 */
+	public int getCallbackQueueDepth(){
+		return dispatcher.getQueueDepth();
+	}
+
+	/**
+	 * Get the number of callbacks dropped because the callback queue was full
+	 * @return dropped callbacks
+	 */
+	public long getDroppedCallbackCount(){
+		return dispatcher.getDroppedCount();
+	}
+
+	/**
+	 * Register a handler for the messages of one type. A type may have several handlers,
+	 * they are called in the order they were added, on the thread onReceive is called on.
+	 * Handlers may be added and removed at any time, also from a handler.
+	 * onReceive is still called for every message.
+	 * @param type message type, 0 to 127
+	 * @param handler handler
+	 * @return result.true/false
+	 */
+	public boolean addMessageHandler(byte type, MessageHandler handler){
+		if((type & 0x80) != 0 || handler == null)
+			return false;
+
+		return router.add(type, handler);
+	}
+
+	/**
+	 * Unregister a handler of a message type
+	 * @param type message type, 0 to 127
+	 * @param handler handler
+	 * @return result.true/false
+	 */
+	public boolean removeMessageHandler(byte type, MessageHandler handler){
+		if((type & 0x80) != 0)
 			return false;
+
+		return router.remove(type, handler);
+	}
+
+	/**
+	 * Get a publisher of the received messages. Each subscriber gets its own buffer
+	 * and receives messages only as far as it requested them, on the callback executor
+	 * or else on the SDK callback thread. The streams complete after {@link #disconnect()}
+	 * and fail with an IOException when the connection is lost.
+	 * @param capacity messages buffered per subscriber
+	 * @param overflow what happens to a message that does not fit, {@link MessageFlow#OVERFLOW_DROP_NEWEST},
+	 * {@link MessageFlow#OVERFLOW_DROP_OLDEST}, {@link MessageFlow#OVERFLOW_LATEST} or {@link MessageFlow#OVERFLOW_ERROR}
+	 * @return publisher
+	 */
+	public MessageFlow.Publisher getMessagePublisher(final int capacity, final int overflow){
+		return new MessageFlow.Publisher() {
+
+			@Override
+			public void subscribe(MessageFlow.Subscriber subscriber) {
+				Executor executor = dispatcher.getExecutor();
+				if(executor == null)
+					executor = SdkThread.getCallbackExecutor();
+
+				MessageSubscription subscription = new MessageSubscription(JumaDevice.this, subscriber, executor, capacity, overflow);
+				subscriptions.add(subscription);
+				subscription.start();
+			}
+		};
+	}
+
+	/**
+	 * Complete every message stream of the device, after the messages already buffered
+	 */
+	public void completeMessageStreams(){
+		for (MessageSubscription subscription : subscriptions) {
+			subscription.complete();
 		}
+	}
 
-		if(readyMessage != null){
+	/**
+	 * End the message streams once the device is disconnected
+	 * @param isExpected true after {@link #disconnect()}, false if the connection was lost
+	 */
+	private void endMessageStreams(boolean isExpected){
+		for (MessageSubscription subscription : subscriptions) {
+			if(isExpected)
+				subscription.complete();
+			else
+				subscription.fail(new IOException("Connection lost = "+uuid.toString()));
+		}
+	}
+
+	void removeSubscription(MessageSubscription subscription){
+		subscriptions.remove(subscription);
+	}
+
+	/**
+	 * Set the handler of the message types no handler is registered for
+	 * @param handler handler, null for none
+	 */
+	public void setDefaultMessageHandler(MessageHandler handler){
+		router.setDefault(handler);
+	}
+
+	/**
+	 * Set how long a message received over several notifications may take to complete.
+	 * A partial message older than that is dropped when the next notification arrives.
+	 * @param millis timeout, 0 to wait forever
+	 */
+	public void setReassemblyTimeout(long millis){
+		this.reassemblyTimeout = Math.max(0, millis);
+	}
+
+	/**
+	 * Set how many messages may wait while a send is in progress.
+	 * Each queued message gets its own onSend.
+	 * @param capacity queue capacity, 0 rejects sends while busy
+	 */
+	public void setSendQueueCapacity(int capacity){
+		synchronized (sendQueue) {
+			sendQueue.setCapacity(capacity);
+		}
+	}
+
+	/**
+	 * Set what send does when the queue is full.
+	 * {@link #OVERFLOW_BLOCK} must not be used from a {@link JumaDeviceCallback} method,
+	 * the queue drains on the same thread.
+	 * @param policy {@link #OVERFLOW_REJECT}, {@link #OVERFLOW_BLOCK} or {@link #OVERFLOW_DROP_OLDEST}
+	 * @param timeoutMillis maximum wait for {@link #OVERFLOW_BLOCK}
+	 */
+	public void setSendOverflowPolicy(int policy, long timeoutMillis){
+		synchronized (sendQueue) {
+			sendQueue.setOverflowPolicy(policy, timeoutMillis);
+		}
+	}
+
+	/**
+	 * Get the number of queued messages
+	 * @return queued messages, not counting the one being sent
+	 */
+	public int getPendingSendCount(){
+		synchronized (sendQueue) {
+			return sendQueue.size();
+		}
+	}
+
+	/**
+	 * Set the ATT MTU requested while connecting (Android 5.0+).
+	 * Messages are split into packets of the agreed MTU minus the ATT header.
+	 * Takes effect on the next connect.
+	 * @param mtu requested MTU, 23 to skip the request
+	 */
+	public void setRequestedMtu(int mtu){
+		this.requestedMtu = mtu;
+	}
+
+	/**
+	 * Get the ATT MTU agreed with the device
+	 * @return MTU, 23 until a larger one is agreed
+	 */
+	public int getMtu(){
+		return mtu;
+	}
+
+	/**
+	 * Switch to {@link #CONNECTION_PRIORITY_HIGH} while messages or a firmware update are being sent,
+	 * and back to the idle priority once nothing was sent for the idle timeout (Android 5.0+).
+	 * @param enabled true for automatic connection priority
+	 */
+	public void setAutoConnectionPriority(boolean enabled){
+		this.isAutoConnectionPriority = enabled;
+	}
+
+	/**
+	 * Set the connection priority used when the link is idle
+	 * @param priority {@link #CONNECTION_PRIORITY_BALANCED} or {@link #CONNECTION_PRIORITY_LOW_POWER}
+	 * @param idleTimeoutMillis time without sends before the idle priority is requested
+	 */
+	public void setIdleConnectionPriority(int priority, long idleTimeoutMillis){
+		this.idleConnectionPriority = priority;
+		this.connectionPriorityIdleTimeout = idleTimeoutMillis;
+	}
+
+	/**
+	 * Get the last requested connection priority
+	 * @return {@link #CONNECTION_PRIORITY_BALANCED}, {@link #CONNECTION_PRIORITY_HIGH} or {@link #CONNECTION_PRIORITY_LOW_POWER}
+	 */
+	public int getConnectionPriority(){
+		return connectionPriority;
+	}
+
+	/**
+	 * Write BULK_OUT packets without response.
+	 * Each packet is paced by the write callback of the previous one and backs off when the stack is full.
+	 * The first packet of every message is still acknowledged by the device.
+	 * @param enabled true for high throughput mode
+	 */
+	public void setHighThroughputMode(boolean enabled){
+		this.isHighThroughput = enabled;
+	}
+
+	/**
+	 * Get the high throughput mode
+	 * @return high throughput mode.true/false
+	 */
+	public boolean isHighThroughputMode(){
+		return isHighThroughput;
+	}
+
+	private boolean readySend(byte type, byte[] message){
+		return readySend(new OutboundMessage(type, message, null));
+	}
+
+	boolean readySend(OutboundMessage outbound){
+		if (!checkBluetoothState()) {
 			return false;
 		}
 
-		if(message.length > MESSAGE_MAX_LENGTH){
+		if(outbound.getPayloadLength() > MESSAGE_MAX_LENGTH){
 			return false;
 		}
 
@@ -215,20 +564,170 @@ public class JumaDevice {
 			return false;
 		}
 
-		readyMessage = addMessageHead(type, message);
+		OutboundMessage[] dropped = new OutboundMessage[1];
 
-		bluetoothGattCharacteristicCommand.setValue(readPacket(readyMessage));
+		synchronized (sendQueue) {
+			if(!isSending && sendQueue.isEmpty())
+				return writeMessage(outbound);
 
-		if(!bluetoothGatt.writeCharacteristic(bluetoothGattCharacteristicCommand)){
-			readyMessage = null;
+			if(!sendQueue.offer(outbound, dropped))
+				return false;
+		}
 
-			return false;
+		if(dropped[0] != null)
+			reportSend(dropped[0], ERROR);
+
+		synchronized (sendQueue) {
+			if(isSending)
+				return true;
 		}
 
-		readyMessage = updateMessage(readyMessage);
+		sendNext();
 		return true;
 	}
 
+	private boolean writeMessage(OutboundMessage message){
+		byte[] packet = message.nextPacket(packetPool, mtu - ATT_HEADER_LENGTH);
+
+		raiseConnectionPriority();
+
+		isSending = true;
+		sendingMessage = message;
+		readyMessage = message.hasRemaining() ? message : null;
+
+		scheduler.enqueue(GattOperation.write(bluetoothGattCharacteristicCommand, packet));
+		return true;
+	}
+
+	private void writeNextPacket(){
+		BluetoothGattCharacteristic characteristic = bluetoothGattCharacteristicBulkOut;
+		if(characteristic == null){
+			finishSend(ERROR);
+			return;
+		}
+
+		byte[] packet = readyMessage.nextPacket(packetPool, mtu - ATT_HEADER_LENGTH);
+		if(!readyMessage.hasRemaining())
+			readyMessage = null;
+
+		if(isHighThroughput && (characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) != 0){
+			GattOperation operation = GattOperation.writeNoResponse(characteristic, packet);
+			operation.retries = NO_RESPONSE_RETRIES;
+			scheduler.enqueue(operation);
+		}else{
+			scheduler.enqueue(GattOperation.write(characteristic, packet));
+		}
+	}
+
+	private void finishSend(int status){
+		OutboundMessage message;
+		synchronized (sendQueue) {
+			message = sendingMessage;
+			sendingMessage = null;
+			isSending = false;
+			readyMessage = null;
+			lastSendTime = SystemClock.elapsedRealtime();
+		}
+
+		reportSend(message, status);
+
+		sendNext();
+	}
+
+	private void sendNext(){
+		synchronized (sendQueue) {
+			if(isSending)
+				return;
+
+			if(!isConnected || bluetoothGatt == null){
+				reportSend(sendQueue.clear(), ERROR);
+				return;
+			}
+
+			OutboundMessage next = sendQueue.poll();
+			if(next != null)
+				writeMessage(next);
+		}
+	}
+
+	private void reportSend(OutboundMessage message, int status){
+		if(message != null && message.listener != null){
+			message.listener.onSent(status);
+			return;
+		}
+
+		if(!isUpdating && callback != null)
+			callback.onSend(status);
+	}
+
+	private void reportSend(List<OutboundMessage> messages, int status){
+		for (int i = 0; i < messages.size(); i++) {
+			reportSend(messages.get(i), status);
+		}
+	}
+
+	/**
+	 * Send a stream of any length as a sequence of messages of the given type.
+	 * Each message carries a 2 byte sequence number, a flags byte
+	 * ({@link StreamTransfer#FLAG_FIRST}, {@link StreamTransfer#FLAG_LAST}) and up to 195 bytes of data.
+	 * The stream is read on a thread of its own and closed at the end.
+	 * @param type message type, 0 to 127
+	 * @param in data
+	 * @param length data length, -1 if unknown
+	 * @param callback progress and completion, may be null
+	 * @return transfer, null if it could not be started
+	 */
+	public StreamTransfer sendStream(byte type, InputStream in, long length, StreamTransfer.Callback callback){
+		if((type & 0x80) != 0 || in == null)
+			return null;
+
+		if(!isConnected || bluetoothGatt == null)
+			return null;
+
+		StreamTransfer transfer = new StreamTransfer(this, type, in, length, MESSAGE_MAX_LENGTH, callback);
+		transfer.start();
+		return transfer;
+	}
+
+	/**
+	 * Send the remaining bytes of a buffer, see {@link #sendStream(byte, InputStream, long, StreamTransfer.Callback)}
+	 * @param type message type
+	 * @param buffer data, read from its position to its limit
+	 * @param callback progress and completion, may be null
+	 * @return transfer, null if it could not be started
+	 */
+	public StreamTransfer sendStream(byte type, ByteBuffer buffer, StreamTransfer.Callback callback){
+		if(buffer == null)
+			return null;
+
+		return sendStream(type, new ByteBufferInputStream(buffer.duplicate()), buffer.remaining(), callback);
+	}
+
+	/**
+	 * Send a file, see {@link #sendStream(byte, InputStream, long, StreamTransfer.Callback)}
+	 * @param type message type
+	 * @param file data
+	 * @param callback progress and completion, may be null
+	 * @return transfer, null if it could not be started
+	 */
+	public StreamTransfer sendFile(byte type, File file, StreamTransfer.Callback callback){
+		FileInputStream in;
+		try {
+			in = new FileInputStream(file);
+		} catch (IOException e) {
+			return null;
+		}
+
+		StreamTransfer transfer = sendStream(type, in, file.length(), callback);
+		if(transfer == null){
+			try {
+				in.close();
+			} catch (IOException e) {
+				Log.e(JumaDevice.class.getName(), "Close failed = "+file.getPath());
+			}
+		}
+		return transfer;
+	}
 
 	/**
 	 * Get SDK version.
@@ -247,45 +746,176 @@ public class JumaDevice {
 	}
 
 	/**
-	 * Update firmware 
+	 * Update firmware. The image is streamed, sending starts while it is still downloading.
+	 * If an earlier update of the same image to this device was interrupted,
+	 * it resumes from the last packet the device acknowledged, see {@link #setFirmwareResumable(boolean)}.
+	 * An image that may resume an earlier update is downloaded in full and checked against it first.
 	 * @param url
 	 * @return result.true/false
 	 */
 	public boolean updateFirmware(String url){
+		FirmwareCache cache = firmwareCache;
+		return updateFirmware(cache != null ? cache.getSource(url) : FirmwareSource.fromUrl(url));
+	}
+
+	/**
+	 * Set the cache {@link #updateFirmware(String)} downloads through. One cache is meant to be
+	 * shared by every device, so an image is downloaded once for a whole fleet.
+	 * @param cache firmware cache, null to download every update
+	 */
+	public void setFirmwareCache(FirmwareCache cache){
+		this.firmwareCache = cache;
+	}
 
-		if(isUpdating){
+	/**
+	 * Update firmware from a source, see {@link #updateFirmware(String)}
+	 * @param source firmware image
+	 * @return result.true/false
+	 */
+	public boolean updateFirmware(FirmwareSource source){
+		if(source == null)
 			return false;
-		}else{
-			isUpdating = true;
+
+		synchronized (firmwareListener) {
+			if(isUpdating){
+				return false;
+			}else{
+				isUpdating = true;
+			}
+			firmwareSource = source;
 		}
 
-		new DownloadThread(url, new DownloadCallback() {
+		source.open(firmwareListener);
+		return true;
+	}
 
-			@Override
-			public void onDownload(boolean state, byte[] data) {
-				if(!state){
-					if(callback != null){
-						callback.onUpdateFirmware(ERROR);
-					}
+	private final FirmwareSource.Listener firmwareListener = new FirmwareSource.Listener() {
 
-					isUpdating = false;
+		@Override
+		public void onUpdate(FirmwareSource source) {
+			onFirmwareData(source);
+		}
+	};
 
-					firmwareData = null;
-				}else{
-					firmwareData = data;
+	private void onFirmwareData(FirmwareSource source){
+		OtaSession session;
+		boolean isNew = false;
+		synchronized (firmwareListener) {
+			if(!isUpdating || source != firmwareSource)
+				return;
 
-					index = 0;
+			if(source.isFailed()){
+				failFirmwareUpdate();
+				return;
+			}
 
-					if(!readySend(MESSAGE_TYPE_OTA_DATA, new byte[]{OTA_HEADER_BEGIN})){
-						isUpdating = false;
-						firmwareData = null;
-						if(callback != null){
-							callback.onUpdateFirmware(ERROR);
-						}
-					}
-				}
+			ByteBuffer image = source.getImage();
+			if(image == null)
+				return;
+
+			session = otaSession;
+			if(session == null){
+				// Whether a checkpoint matches is only known once the image is hashed
+				if(source.getHash() == null && isFirmwareResumable && OtaCheckpoint.exists(context, uuid, image.remaining()))
+					return;
+
+				session = new OtaSession(image, firmwareWindowSize, source.getHash());
+				session.setAvailable(source.getAvailable());
+				otaSession = session;
+				isNew = true;
 			}
-		}).start();
+		}
+
+		if(isNew){
+			startFirmwareUpdate(session);
+			return;
+		}
+
+		synchronized (session) {
+			session.setAvailable(source.getAvailable());
+			if(session.getHash() == null)
+				session.setHash(source.getHash());
+		}
+
+		if(session.isStarted())
+			fillFirmwareWindow(session);
+	}
+
+	private void startFirmwareUpdate(OtaSession session){
+		int packets = 0;
+		if(isFirmwareResumable)
+			packets = OtaCheckpoint.load(context, uuid, session.getHash(), session.getTotalBytes());
+
+		if(packets > 0 && packets < session.getTotalPackets()){
+			session.resume(packets);
+			restartFirmwareAckTimer();
+			fillFirmwareWindow(session);
+			return;
+		}
+
+		if(session.getHash() != null)
+			OtaCheckpoint.clear(context, uuid);
+
+		if(readySend(new OutboundMessage(MESSAGE_TYPE_OTA_DATA, new byte[]{OTA_HEADER_BEGIN}, new FirmwareMessageListener(session, -1)))){
+			restartFirmwareAckTimer();
+		}else{
+			failFirmwareUpdate();
+		}
+	}
+
+	/**
+	 * Set whether an interrupted firmware update is resumed. The progress of an update is saved
+	 * every few packets and when it fails, and the next update of the same image to this device
+	 * skips the begin message and continues from the last acknowledged packet.
+	 * The device has to be still in OTA mode with the earlier data, a resume the device
+	 * does not acknowledge drops the saved progress, so the next attempt starts over.
+	 * @param resumable true to resume, false to always start over
+	 */
+	public void setFirmwareResumable(boolean resumable){
+		this.isFirmwareResumable = resumable;
+	}
+
+	/**
+	 * Drop the saved progress of an interrupted firmware update
+	 */
+	public void clearFirmwareCheckpoint(){
+		OtaCheckpoint.clear(context, uuid);
+	}
+
+	/**
+	 * Set how long the device may take to acknowledge a firmware message before the update fails.
+	 * Waiting for more of an image that is still downloading does not count.
+	 * @param millis timeout, 0 to wait forever
+	 */
+	public void setFirmwareAckTimeout(long millis){
+		this.firmwareAckTimeout = Math.max(0, millis);
+	}
+
+	/**
+	 * Set how many firmware packets may be in flight before the device acknowledges them.
+	 * Values above 1 need firmware that acknowledges every data packet in order and
+	 * echoes its 8 bit index after the OTA header. Packets from the first unacknowledged one
+	 * are sent again when an acknowledgement is out of order or a write fails.
+	 * Takes effect on the next update.
+	 * @param windowSize packets in flight, 1 to 8, 1 for stop-and-wait
+	 */
+	public void setFirmwareWindowSize(int windowSize){
+		this.firmwareWindowSize = Math.max(1, Math.min(windowSize, MAX_FIRMWARE_WINDOW));
+	}
+
+	/**
+	 * Cancel the firmware update. The device is left in OTA mode.
+	 * @return result.true/false
+	 */
+	public boolean cancelFirmwareUpdate(){
+		if(!isUpdating)
+			return false;
+
+		endFirmwareUpdate();
+		OtaCheckpoint.clear(context, uuid);
+
+		if(callback != null)
+			callback.onUpdateFirmware(CANCELLED);
 		return true;
 	}
 
@@ -305,6 +935,23 @@ public class JumaDevice {
 		return isConnected;
 	}
 
+	boolean isInUse(){
+		return isConnected || isConnecting || isUpdating;
+	}
+
+	private String getAddress() throws Exception{
+		if(address == null){
+			DeviceIdCipher cipher = DeviceIdCipher.getInstance(bluetoothAdapter);
+			if(cipher != null)
+				address = cipher.decrypt(uuid);
+		}
+
+		if(address == null)
+			throw new Exception("Unknown device = "+uuid.toString());
+
+		return address;
+	}
+
 	private boolean checkBluetoothState(){
 		if(bluetoothAdapter == null || !bluetoothAdapter.isEnabled()){
 			return false;
@@ -327,6 +974,8 @@ public class JumaDevice {
 
 					gatt.close();
 
+					scheduler.detach();
+
 					if(isConnecting){
 						isConnecting = false;
 						if(callback != null)
@@ -334,12 +983,20 @@ public class JumaDevice {
 						return;
 					}
 
+					boolean wasDisconnecting = isDisconnecting;
 					if (isDisconnecting)
 						isDisconnecting = false;
 
 					if(isConnected)
 						isConnected = false;
 
+					resetSend();
+
+					if(isUpdating)
+						failFirmwareUpdate();
+
+					endMessageStreams(wasDisconnecting);
+
 					new Thread(new Runnable() {
 
 						@Override
@@ -403,13 +1060,22 @@ public class JumaDevice {
 						&& bluetoothGattCharacteristicBulkOut != null && bluetoothGattCharacteristicBulkIn != null
 						&& bluetoothGattDescriptorEvent != null && bluetoothGattDescriptorBulkIn != null){
 
-					bluetoothGattDescriptorEvent.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-
 					gatt.setCharacteristicNotification(bluetoothGattCharacteristicEvent, true);
+					gatt.setCharacteristicNotification(bluetoothGattCharacteristicBulkIn, true);
 
-					if(!gatt.writeDescriptor(bluetoothGattDescriptorEvent)){
-						gatt.disconnect();
+					mtu = DEFAULT_MTU;
+					eventAssembler.reset();
+					bulkInAssembler.reset();
+					scheduler.attach(gatt);
+
+					if(requestedMtu > DEFAULT_MTU && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP){
+						GattOperation operation = GattOperation.requestMtu(requestedMtu);
+						operation.retries = 0;
+						scheduler.enqueue(operation);
 					}
+
+					scheduler.enqueue(GattOperation.writeDescriptor(bluetoothGattDescriptorEvent, BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE));
+					scheduler.enqueue(GattOperation.writeDescriptor(bluetoothGattDescriptorBulkIn, BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE));
 				}else{
 					Log.e(JumaDevice.class.getName(), "Does not support the device = "+uuid.toString());
 					gatt.disconnect();
@@ -430,376 +1096,436 @@ public class JumaDevice {
 		};
 
 		public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
-			if(status == BluetoothGatt.GATT_SUCCESS){
-				if(descriptor.getCharacteristic().getUuid().equals(CHARACTERISTIC_UUID_EVENT)){
-					bluetoothGattDescriptorBulkIn.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
-
-					gatt.setCharacteristicNotification(bluetoothGattCharacteristicBulkIn, true);
-
-					if(!gatt.writeDescriptor(bluetoothGattDescriptorBulkIn)){
-						gatt.disconnect();
-					}
-
-				}else if(descriptor.getCharacteristic().getUuid().equals(CHARACTERISTIC_UUID_BULK_IN)){
-					isConnecting = false;
-					isConnected = true;
-					bluetoothGatt = gatt;
-					if(callback != null)
-						callback.onConnectionStateChange(SUCCESS, STATE_CONNECTED);
-				}
-
-			}else if(status == 133){
-				isConnecting = false;
-
-				if(callback != null)
-					callback.onConnectionStateChange(ERROR, STATE_CONNECTED);
-
-				gatt.close();
-
-				clear();
-			}else{
-				gatt.disconnect();
-			}
+			scheduler.complete(GattOperation.WRITE_DESCRIPTOR, status, 0);
 		};
 
 		public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-			if(status == BluetoothGatt.GATT_SUCCESS){
-				if(characteristic.getUuid().equals(CHARACTERISTIC_UUID_COMMAND)){
-					if(readyMessage != null && readyMessage.length > 0){
-						while (readyMessage != null) {
+			scheduler.complete(GattOperation.WRITE_CHARACTERISTIC, status, 0);
+		};
 
-							bluetoothGattCharacteristicBulkOut.setValue(readPacket(readyMessage));
+		public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+			byte[] value = characteristic.getValue();
+			if(value == null)
+				return;
 
-							if(!bluetoothGatt.writeCharacteristic(bluetoothGattCharacteristicBulkOut)){
-								if(callback != null)
-									callback.onSend(ERROR);
-								return;
-							}
+			boolean isEvent = characteristic.getUuid().equals(CHARACTERISTIC_UUID_EVENT);
+			MessageAssembler assembler = isEvent ? eventAssembler : bulkInAssembler;
+			if(!assembler.add(value, SystemClock.elapsedRealtime(), reassemblyTimeout))
+				return;
 
-							readyMessage = updateMessage(readyMessage);
+			byte type = assembler.getType();
 
-						}
-					}
+			if(type == MESSAGE_TYPE_OTA_DATA && isUpdating && isEvent){
+				onFirmwareAck(assembler.getBuffer(), assembler.getLength());
+				return;
+			}
 
-					if(readyMessage == null && !isUpdating)
-						if(callback != null)
-							callback.onSend(SUCCESS);
-				}
-			}else {
-				if(!isUpdating){
-					if(callback != null)
-						callback.onSend(ERROR);
-				}else{
-					isUpdating = false;
-					if(callback != null){
-						callback.onUpdateFirmware(ERROR);
-					}
+			if((type & 0x80) != 0)
+				return;
+
+			if(!subscriptions.isEmpty()){
+				for (MessageSubscription subscription : subscriptions) {
+					subscription.offer(type, assembler.getBuffer(), MessageAssembler.HEADER_LENGTH, assembler.getLength());
 				}
 			}
+
+			deliverMessage(type, assembler.getBuffer(), MessageAssembler.HEADER_LENGTH, assembler.getLength());
 		};
 
-		public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-			if(characteristic.getUuid().equals(CHARACTERISTIC_UUID_EVENT)){
+		public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
+			scheduler.complete(GattOperation.READ_RSSI, status, rssi);
+		};
 
-				byte  msgType = characteristic.getValue()[0];
+		public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+			scheduler.complete(GattOperation.REQUEST_MTU, status, mtu);
+		};
+	};
 
-				if(msgType == MESSAGE_TYPE_OTA_DATA && isUpdating){
+	/**
+	 * Hand a received message to its handlers and to onReceive. With an executor both run
+	 * from one queued copy of the message, so they are dropped together when the queue is full.
+	 */
+	private void deliverMessage(final byte type, byte[] buffer, int offset, final int length){
+		JumaDeviceCallback target = callback;
+		if(!router.hasHandlers(type) || !dispatcher.isAsync()){
+			router.route(this, type, buffer, offset, length);
+			if(target != null)
+				target.onReceive(type, buffer, offset, length);
+			return;
+		}
 
-					byte header = characteristic.getValue()[2];
+		final JumaDeviceCallback receiver = target instanceof DispatchingDeviceCallback ? ((DispatchingDeviceCallback) target).getTarget() : null;
+		final byte[] message = new byte[length];
+		System.arraycopy(buffer, offset, message, 0, length);
 
-					switch (header) {
-					case OTA_HEADER_BEGIN:
-						if(firmwareData != null){
+		dispatcher.dispatch(new Runnable() {
 
-							if(!readySend(MESSAGE_TYPE_OTA_DATA, readFirmwarePacket(firmwareData))){
-								isUpdating = false;
-								firmwareData = null;
-								if(callback != null){
-									callback.onUpdateFirmware(ERROR);
-								}
-								return;
-							}
+			@Override
+			public void run() {
+				router.route(JumaDevice.this, type, message, 0, length);
+				if(receiver != null)
+					receiver.onReceive(type, message, 0, length);
+			}
+		}, true);
 
-							index++;
+		if(receiver == null && target != null)
+			target.onReceive(type, buffer, offset, length);
+	}
 
-							firmwareData = updateFirmwareData(firmwareData);
+	private GattScheduler.Listener operationListener = new GattScheduler.Listener() {
 
-						}else{
+		@Override
+		public void onOperationComplete(GattOperation operation, int status, int value) {
+			switch (operation.kind) {
+			case GattOperation.WRITE_DESCRIPTOR:
+				onDescriptorWriteComplete(operation, status);
+				break;
+			case GattOperation.WRITE_CHARACTERISTIC:
+				onMessageWriteComplete(status);
+				break;
+			case GattOperation.READ_RSSI:
+				onReadRemoteRssiComplete(status, value);
+				break;
+			case GattOperation.REQUEST_MTU:
+				if(status == BluetoothGatt.GATT_SUCCESS && value > DEFAULT_MTU)
+					mtu = value;
+				break;
+			}
+		}
+	};
 
-							isUpdating = false;
+	private void onDescriptorWriteComplete(GattOperation operation, int status){
+		BluetoothGatt gatt = bluetoothGatt;
+		if(gatt == null)
+			return;
 
-							firmwareData = null;
+		if(status == BluetoothGatt.GATT_SUCCESS){
+			if(operation.descriptor == bluetoothGattDescriptorBulkIn){
+				isConnecting = false;
+				isConnected = true;
+				if(callback != null)
+					callback.onConnectionStateChange(SUCCESS, STATE_CONNECTED);
+			}
 
-							if(callback != null){
-								callback.onUpdateFirmware(ERROR);
-							}
-						}
+		}else if(status == 133){
+			isConnecting = false;
 
-						break;
-					case OTA_HEADER_DATA:
-						if(firmwareData == null){
-							if(readySend(MESSAGE_TYPE_OTA_DATA, new byte[]{OTA_HEADER_END})){
-								isUpdating = false;
-								if(callback != null)
-									callback.onUpdateFirmware(SUCCESS);
-							}else {
-								isUpdating = false;
-								firmwareData = null;
-								if(callback != null){
-									callback.onUpdateFirmware(ERROR);
-								}
-							}
-						}else {
-
-							if(!readySend(MESSAGE_TYPE_OTA_DATA, readFirmwarePacket(firmwareData))){
-								isUpdating = false;
-								firmwareData = null;
-								if(callback != null){
-									callback.onUpdateFirmware(ERROR);
-								}
-							}
+			if(callback != null)
+				callback.onConnectionStateChange(ERROR, STATE_CONNECTED);
 
-							index++;
+			gatt.close();
 
-							firmwareData = updateFirmwareData(firmwareData);
-						}
+			clear();
+		}else{
+			gatt.disconnect();
+		}
+	}
 
-						break;
-					}
+	private void onMessageWriteComplete(int status){
+		if(status == BluetoothGatt.GATT_SUCCESS){
+			if(readyMessage != null)
+				writeNextPacket();
+			else
+				finishSend(SUCCESS);
+		}else {
+			finishSend(ERROR);
 
-					return;
+			// The write may still go out late, the device would get the following packets out of order
+			BluetoothGatt gatt = bluetoothGatt;
+			if(status == GattScheduler.STATUS_TIMEOUT && gatt != null)
+				gatt.disconnect();
+		}
+	}
 
-				}
-			}
+	private void onFirmwareAck(byte[] value, int length){
+		OtaSession session = otaSession;
+		if(session == null || length < 1){
+			failFirmwareUpdate();
+			return;
+		}
 
-			byte[] message = characteristic.getValue();
-			byte type = message[0];
-			byte[] pureMessage = new byte[message.length - 2];
+		restartFirmwareAckTimer();
 
-			for (int i = 0; i < pureMessage.length; i++) {
-				pureMessage[i] = message[i + 2];
+		switch (value[2]) {
+		case OTA_HEADER_BEGIN:
+			if(!session.hasRemaining()){
+				failFirmwareUpdate();
+				return;
 			}
 
-			if(Integer.parseInt(toHex(new byte[]{type})) < 128)
-				if(callback != null)
-					callback.onReceive(type, pureMessage);
+			session.start();
+			fillFirmwareWindow(session);
+			break;
+		case OTA_HEADER_DATA:
+			if(session.getWindowSize() > 1 && length > 1 && (value[3] & 0xff) != (session.getAckedPackets() & 0xff)){
+				int packet;
+				int generation;
+				synchronized (session) {
+					if(session.skipStaleAck())
+						return;
+					packet = session.getAckedPackets();
+					generation = session.getRetransmissions();
+				}
 
-		};
+				retransmitFirmware(session, packet, generation);
+				return;
+			}
 
-		public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
+			synchronized (session) {
+				session.ack();
 
-			if(status == BluetoothGatt.GATT_SUCCESS){
-				if(callback != null)
-					callback.onRemoteRssi(SUCCESS, rssi);
-			}else if(status == 133){
-
-				if(callback != null)
-					callback.onRemoteRssi(ERROR, rssi);
+				if(session.getAckedPackets() % FIRMWARE_CHECKPOINT_INTERVAL == 0)
+					OtaCheckpoint.save(context, uuid, session.getHash(), session.getTotalBytes(), session.getAckedPackets());
+			}
 
-				callback.onConnectionStateChange(ERROR, STATE_CONNECTED);
+			if(callback != null)
+				callback.onUpdateFirmwareProgress(session.getBytesSent(), session.getTotalBytes(), session.getRate(), session.getEta());
 
-				gatt.close();
+			if(session.isComplete()){
+				if(readySend(new OutboundMessage(MESSAGE_TYPE_OTA_DATA, new byte[]{OTA_HEADER_END}, new FirmwareMessageListener(session, -1)))){
+					endFirmwareUpdate();
+					OtaCheckpoint.clear(context, uuid);
+					if(callback != null)
+						callback.onUpdateFirmware(SUCCESS);
+				}else {
+					failFirmwareUpdate();
+				}
+			}else{
+				fillFirmwareWindow(session);
+			}
+			break;
+		}
+	}
 
-				clear();
+	private void fillFirmwareWindow(OtaSession session){
+		synchronized (session) {
+			if(session.getInFlight() == 0 && session.hasAvailable())
+				restartFirmwareAckTimer();
 
+			while (session.hasAvailable() && session.getInFlight() < session.getWindowSize()) {
+				FirmwareMessageListener listener = new FirmwareMessageListener(session, session.getPacketIndex());
+				if(!readySend(new OutboundMessage(MESSAGE_TYPE_OTA_DATA, session.nextPacket(OTA_HEADER_DATA), listener, session))){
+					failFirmwareUpdate();
+					return;
+				}
 			}
+		}
+	}
 
-		};
-	};
-
-	private void clear(){
-		bluetoothGatt = null;
-		bluetoothGattService = null;
-		bluetoothGattCharacteristicCommand = null;
-		bluetoothGattCharacteristicEvent = null;
-		bluetoothGattCharacteristicBulkIn = null;
-		bluetoothGattCharacteristicBulkOut = null;
-		bluetoothGattDescriptorEvent = null;
-		bluetoothGattDescriptorBulkIn = null;
-	} 
+	/**
+	 * Send the packets from an unacknowledged one again. Packets of the session still queued
+	 * are taken back first, so the device does not get them twice.
+	 * @param packet first packet to send again
+	 * @param generation rewind count the packet was cut at, a request from before the last rewind is ignored
+	 */
+	private void retransmitFirmware(OtaSession session, int packet, int generation){
+		int retransmissions;
+		synchronized (session) {
+			if(generation != session.getRetransmissions() || packet < session.getAckedPackets() || packet >= session.getPacketIndex())
+				return;
+
+			int purged;
+			synchronized (sendQueue) {
+				purged = sendQueue.remove(session);
+			}
+			retransmissions = session.rewind(packet, session.getPacketIndex() - packet - purged - 1);
+		}
 
-	private byte[] addMessageHead(byte type, byte[] message){
+		if(retransmissions > MAX_FIRMWARE_RETRANSMISSIONS){
+			failFirmwareUpdate();
+			return;
+		}
 
-		if(message == null)
-			message = new byte[0];
+		fillFirmwareWindow(session);
+	}
 
-		ByteArrayBuffer buffer = new ByteArrayBuffer(200);
+	/**
+	 * Completion of a message of a firmware update, never reported to onSend.
+	 * A failed data packet is sent again with a window above 1, any other failure fails the update.
+	 */
+	private class FirmwareMessageListener implements OutboundMessage.Listener {
 
-		buffer.append(type);
-		buffer.append(message.length);
+		private final OtaSession session;
+		private final int packet;
+		private final int generation;
 
-		for (int i = 0; i < message.length; i++) {
-			buffer.append(message[i]);
+		FirmwareMessageListener(OtaSession session, int packet) {
+			this.session = session;
+			this.packet = packet;
+			this.generation = session.getRetransmissions();
 		}
 
-		return buffer.toByteArray();
+		@Override
+		public void onSent(int status) {
+			if(status == SUCCESS || !isConnected || session != otaSession)
+				return;
+
+			if(packet >= 0 && session.getWindowSize() > 1)
+				retransmitFirmware(session, packet, generation);
+			else
+				failFirmwareUpdate();
+		}
 	}
 
-	private byte[] readPacket(byte[] readyMessage){
+	private void failFirmwareUpdate(){
+		if(!isUpdating)
+			return;
 
-		byte[] packet  = null;
+		OtaSession session = otaSession;
+		if(session != null){
+			if(session.isUnconfirmedResume())
+				OtaCheckpoint.clear(context, uuid);
+			else if(session.getAckedPackets() > 0)
+				OtaCheckpoint.save(context, uuid, session.getHash(), session.getTotalBytes(), session.getAckedPackets());
+		}
 
-		if(readyMessage.length <= 20)
-			packet = new byte[readyMessage.length];
-		else
-			packet = new byte[20];
+		endFirmwareUpdate();
 
-		for (int i = 0; i < packet.length; i++) {
-			packet[i] = readyMessage[i];
-		}
+		if(callback != null)
+			callback.onUpdateFirmware(ERROR);
+	}
 
-		return packet;
+	private void restartFirmwareAckTimer(){
+		SdkThread.getHandler().removeCallbacks(firmwareAckTimeoutTask);
+		if(firmwareAckTimeout > 0)
+			SdkThread.getHandler().postDelayed(firmwareAckTimeoutTask, firmwareAckTimeout);
 	}
 
-	private byte[] updateMessage(byte[] readyMessage){
+	private Runnable firmwareAckTimeoutTask = new Runnable() {
 
-		if(readyMessage.length <= 20){
-			return null;
-		}else{
-			ByteArrayBuffer buffer = new ByteArrayBuffer(200);
+		@Override
+		public void run() {
+			OtaSession session = otaSession;
+			if(!isUpdating || session == null)
+				return;
 
-			for (int i = 20; i < readyMessage.length; i++) {
-				buffer.append(readyMessage[i]);
+			synchronized (session) {
+				if(session.isStarted() && session.getInFlight() == 0)
+					return;
 			}
 
-			return buffer.toByteArray();
+			Log.e(JumaDevice.class.getName(), "Firmware acknowledgement timed out = "+uuid.toString());
+			failFirmwareUpdate();
 		}
-	}
-
-	private interface DownloadCallback{
-		public void onDownload(boolean state, byte[] data);
-	}
+	};
 
-	private class DownloadThread extends Thread{
+	/**
+	 * End the update and take back its data packets still queued, so they are not sent afterwards
+	 */
+	private void endFirmwareUpdate(){
+		FirmwareSource source;
+		OtaSession session;
+		synchronized (firmwareListener) {
+			isUpdating = false;
+			session = otaSession;
+			otaSession = null;
+			source = firmwareSource;
+			firmwareSource = null;
+		}
 
-		private DownloadCallback downloadCallback = null;
-		private String url = null;
+		SdkThread.getHandler().removeCallbacks(firmwareAckTimeoutTask);
 
-		public DownloadThread(String url, DownloadCallback callback) {
-			this.url = url;
-			this.downloadCallback =callback;
+		if(session != null){
+			synchronized (sendQueue) {
+				sendQueue.remove(session);
+			}
 		}
 
-		@Override
-		public void run() {
+		if(source != null)
+			source.close(firmwareListener);
+	}
 
-			try {
-				URLConnection connection = new URL(url).openConnection();
+	private void onReadRemoteRssiComplete(int status, int rssi){
+		if(status == BluetoothGatt.GATT_SUCCESS){
+			if(callback != null)
+				callback.onRemoteRssi(SUCCESS, rssi);
+		}else if(status == 133){
 
-				byte[] buffer = new byte[connection.getContentLength()];
+			if(callback != null)
+				callback.onRemoteRssi(ERROR, rssi);
 
-				InputStream is = connection.getInputStream();
+			if(callback != null)
+				callback.onConnectionStateChange(ERROR, STATE_CONNECTED);
 
-				is.read(buffer);
+			BluetoothGatt gatt = bluetoothGatt;
+			if(gatt != null)
+				gatt.close();
 
-				is.close();
+			clear();
 
-				downloadCallback.onDownload(true, buffer);
-			}catch (Exception e) {
-				downloadCallback.onDownload(false, null);
-			}
+		}else{
+			if(callback != null)
+				callback.onRemoteRssi(ERROR, rssi);
 		}
 	}
 
-	private byte[] updateFirmwareData(byte[] firmwateData){
-
-		if(firmwateData.length <= 196){
-			return null;
-		}else{
-			ByteArrayBuffer buffer = new ByteArrayBuffer(firmwateData.length - 196);
-
-			for (int i = 196; i < firmwateData.length; i++) {
-				buffer.append(firmwateData[i]);
-			}
+	private void resetSend(){
+		synchronized (sendQueue) {
+			OutboundMessage message = sendingMessage;
+			sendingMessage = null;
+			isSending = false;
+			readyMessage = null;
 
-			return buffer.toByteArray();
+			if(message != null)
+				reportSend(message, ERROR);
+			reportSend(sendQueue.clear(), ERROR);
 		}
+
+		SdkThread.getHandler().removeCallbacks(idlePriorityTask);
+		connectionPriority = CONNECTION_PRIORITY_BALANCED;
 	}
 
-	private byte[] readFirmwarePacket(byte[] firmwateData){
+	private void raiseConnectionPriority(){
+		if(!isAutoConnectionPriority || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP)
+			return;
 
-		byte[] buffer = null;
+		if(connectionPriority != CONNECTION_PRIORITY_HIGH){
+			connectionPriority = CONNECTION_PRIORITY_HIGH;
+			scheduler.enqueue(GattOperation.requestConnectionPriority(CONNECTION_PRIORITY_HIGH));
+			SdkThread.getHandler().postDelayed(idlePriorityTask, connectionPriorityIdleTimeout);
+		}
+	}
 
-		if(firmwateData == null)
-			return buffer;
+	private Runnable idlePriorityTask = new Runnable() {
 
-		if(firmwateData.length <= 196)
-			buffer = new byte[firmwateData.length + 2];
-		else
-			buffer = new byte[MESSAGE_MAX_LENGTH];
+		@Override
+		public void run() {
+			long idle;
+			synchronized (sendQueue) {
+				if(!isConnected || connectionPriority != CONNECTION_PRIORITY_HIGH)
+					return;
 
-		buffer[0] = OTA_HEADER_DATA;
-		buffer[1] = (byte)index;
+				idle = SystemClock.elapsedRealtime() - lastSendTime;
 
-		for (int i = 0; i < buffer.length - 2; i++) {
-			buffer[i+2] = firmwateData[i];
-		}
+				if(isSending || isUpdating || !sendQueue.isEmpty() || idle < connectionPriorityIdleTimeout){
+					SdkThread.getHandler().postDelayed(idlePriorityTask, Math.max(connectionPriorityIdleTimeout - idle, 100));
+					return;
+				}
 
-		return buffer;
-	}
+				connectionPriority = idleConnectionPriority;
+			}
 
-	@SuppressLint("DefaultLocale")
-	private String IDDecrypt(String encryptedId , Context context) throws Exception{
-		StringBuffer sb = new StringBuffer(encryptedId.toUpperCase());
-		for (int i = 0; i < 4; i++) {			sb.deleteCharAt(8 + i * 4);
-		}
-		StringBuffer sb2 = null;
-		sb2  = new StringBuffer(decrypt(getLocalBluetoothMAC(context), sb.toString()));
-		for (int i = 0; i < 5; i++) {
-			sb2.insert(2 + i * 3, ":");
+			scheduler.enqueue(GattOperation.requestConnectionPriority(idleConnectionPriority));
 		}
-		return sb2.toString();
-	}
-
-	private String decrypt(String seed, String encrypted) throws Exception { 
-		byte[] rawKey = getRawKey(seed.getBytes()); 
-		byte[] enc = toByte(encrypted); 
-		byte[] result = decrypt(rawKey, enc); 
-		return new String(result); 
-	} 
+	};
 
-	private byte[] getRawKey(byte[] seed) throws Exception { 
-		KeyGenerator kgen = KeyGenerator.getInstance("AES"); 
-		SecureRandom sr = SecureRandom.getInstance("SHA1PRNG", "Crypto"); 
-		sr.setSeed(seed); 
-		kgen.init(128, sr); 
-		SecretKey skey = kgen.generateKey(); 
-		byte[] raw = skey.getEncoded(); 
-		return raw; 
-	} 
+	private void clear(){
+		scheduler.detach();
+		resetSend();
 
-	private byte[] decrypt(byte[] raw, byte[] encrypted) throws Exception { 
-		SecretKeySpec skeySpec = new SecretKeySpec(raw, "AES"); 
-		Cipher cipher = Cipher.getInstance("AES"); 
-		cipher.init(Cipher.DECRYPT_MODE, skeySpec); 
-		byte[] decrypted = cipher.doFinal(encrypted); 
-		return decrypted; 
-	} 
+		if(isUpdating)
+			failFirmwareUpdate();
 
-	private byte[] toByte(String hexString) { 
-		int len = hexString.length()/2; 
-		byte[] result = new byte[len]; 
-		for (int i = 0; i < len; i++) 
-			result[i] = Integer.valueOf(hexString.substring(2*i, 2*i+2), 16).byteValue(); 
-		return result; 
-	} 
+		endMessageStreams(false);
 
-	private static String toHex(byte[] buf) { 
-		if (buf == null) 
-			return ""; 
-		StringBuffer result = new StringBuffer(2*buf.length); 
-		String HEX = "0123456789ABCDEF"; 
-		for (int i = 0; i < buf.length; i++) { 
-			result.append(HEX.charAt((buf[i]>>4)&0x0f)).append(HEX.charAt(buf[i]&0x0f));
-		} 
-		return result.toString(); 
+		bluetoothGatt = null;
+		bluetoothGattService = null;
+		bluetoothGattCharacteristicCommand = null;
+		bluetoothGattCharacteristicEvent = null;
+		bluetoothGattCharacteristicBulkIn = null;
+		bluetoothGattCharacteristicBulkOut = null;
+		bluetoothGattDescriptorEvent = null;
+		bluetoothGattDescriptorBulkIn = null;
 	} 
 
-	private String getLocalBluetoothMAC(Context context){
-		BluetoothManager manager = (BluetoothManager) context.getSystemService(Context.BLUETOOTH_SERVICE);
-		BluetoothAdapter adapter = manager.getAdapter();
-		String mac = adapter.getAddress();
-		return mac;
-	}
-
 }
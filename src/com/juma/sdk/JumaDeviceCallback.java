@@ -4,7 +4,24 @@ package com.juma.sdk;
 public abstract class JumaDeviceCallback {
 	public void onConnectionStateChange(int status, int newState){};
 	public void onReceive(byte type, byte[] message){};
+
+	/**
+	 * Receive a message without copying it. The buffer belongs to the SDK and is only valid
+	 * during the call, copy the bytes to keep them. By default the message is copied
+	 * and handed to {@link #onReceive(byte, byte[])}.
+	 * @param type message type
+	 * @param buffer buffer holding the message
+	 * @param offset start of the message in the buffer
+	 * @param length message length
+	 */
+	public void onReceive(byte type, byte[] buffer, int offset, int length){
+		byte[] message = new byte[length];
+		System.arraycopy(buffer, offset, message, 0, length);
+		onReceive(type, message);
+	};
+
 	public void onSend(int status){};
 	public void onRemoteRssi(int status, int rssi){};
 	public void onUpdateFirmware(int status){};
+	public void onUpdateFirmwareProgress(long bytesSent, long totalBytes, long bytesPerSecond, long etaMillis){};
 }
@@ -0,0 +1,473 @@
+package com.juma.sdk;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.UUID;
+
+import android.os.Handler;
+import android.os.SystemClock;
+
+/**
+ * Owns the connections of several devices.
+ * Only one device goes through connect, service discovery and notification setup at a time,
+ * the others wait in a queue ordered by priority. Connected devices stay in a pool once released
+ * and are handed out again without reconnecting; the least recently used idle device is
+ * disconnected when the connection limit is reached and another device waits.
+ * Callbacks of managed devices are called through their callback executor, see
+ * {@link JumaDevice#setCallbackExecutor(java.util.concurrent.Executor, int)}, or else connection
+ * state changes on the SDK thread.
+ */
+public class JumaDeviceManager {
+
+	public static final int PRIORITY_LOW = 0;
+	public static final int PRIORITY_NORMAL = 1;
+	public static final int PRIORITY_HIGH = 2;
+
+	private static final int MAX_CONNECTIONS = 7;
+
+	private static final int STATE_QUEUED = 0;
+	private static final int STATE_CONNECTING = 1;
+	private static final int STATE_CONNECTED = 2;
+	private static final int STATE_IDLE = 3;
+	private static final int STATE_DISCONNECTING = 4;
+
+	private final Handler handler = SdkThread.getHandler();
+	private final Map<JumaDevice, Connection> connections = new HashMap<JumaDevice, Connection>();
+	private final PriorityQueue<Connection> queue = new PriorityQueue<Connection>(8, new Comparator<Connection>() {
+
+		@Override
+		public int compare(Connection lhs, Connection rhs) {
+			if(lhs.priority != rhs.priority)
+				return lhs.priority > rhs.priority ? -1 : 1;
+			return lhs.sequence < rhs.sequence ? -1 : (lhs.sequence == rhs.sequence ? 0 : 1);
+		}
+	});
+
+	private Connection connecting = null;
+	private long sequence = 0;
+	private volatile int maxConnections = 5;
+	private volatile int connectRetries = 2;
+	private volatile long connectTimeout = 15000;
+	private volatile long retryDelay = 500;
+
+	/**
+	 * Set how many devices may be connected or connecting at the same time
+	 * @param maxConnections connections, 1 to 7
+	 */
+	public void setMaxConnections(int maxConnections){
+		this.maxConnections = Math.max(1, Math.min(maxConnections, MAX_CONNECTIONS));
+		handler.post(new Runnable() {
+
+			@Override
+			public void run() {
+				pump();
+			}
+		});
+	}
+
+	/**
+	 * Set how many times a failed connect, e.g. with status 133, is tried again before it is reported
+	 * @param retries retries
+	 */
+	public void setConnectRetries(int retries){
+		this.connectRetries = Math.max(0, retries);
+	}
+
+	/**
+	 * Set how long a connect may take until notifications are set up before it is aborted
+	 * @param millis timeout
+	 */
+	public void setConnectTimeout(long millis){
+		this.connectTimeout = millis;
+	}
+
+	/**
+	 * Set the delay before a failed connect is tried again
+	 * @param millis delay
+	 */
+	public void setRetryDelay(long millis){
+		this.retryDelay = Math.max(0, millis);
+	}
+
+	/**
+	 * Connect a device, or hand out the pooled connection if it is connected already
+	 * @param device device
+	 * @param priority {@link #PRIORITY_LOW}, {@link #PRIORITY_NORMAL} or {@link #PRIORITY_HIGH}
+	 * @param callback device callback
+	 * @return result.true/false
+	 */
+	public boolean connect(final JumaDevice device, final int priority, final JumaDeviceCallback callback){
+		if(device == null)
+			return false;
+
+		handler.post(new Runnable() {
+
+			@Override
+			public void run() {
+				Connection connection;
+				synchronized (connections) {
+					connection = connections.get(device);
+					if(connection == null){
+						connection = new Connection(device);
+						connections.put(device, connection);
+					}
+					connection.callback = device.wrapCallback(callback);
+				}
+
+				switch (connection.state) {
+				case STATE_QUEUED:
+					connection.priority = priority;
+					if(!connection.isWaiting){
+						queue.remove(connection);
+						connection.sequence = sequence++;
+						queue.add(connection);
+						pump();
+					}
+					break;
+				case STATE_IDLE:
+					connection.state = STATE_CONNECTED;
+					//$FALL-THROUGH$
+				case STATE_CONNECTED:
+					if(connection.callback != null)
+						connection.callback.onConnectionStateChange(JumaDevice.SUCCESS, JumaDevice.STATE_CONNECTED);
+					break;
+				case STATE_DISCONNECTING:
+					connection.priority = priority;
+					connection.isReconnecting = true;
+					break;
+				}
+			}
+		});
+		return true;
+	}
+
+	/**
+	 * Connect a device with {@link #PRIORITY_NORMAL}
+	 * @param device device
+	 * @param callback device callback
+	 * @return result.true/false
+	 */
+	public boolean connect(JumaDevice device, JumaDeviceCallback callback){
+		return connect(device, PRIORITY_NORMAL, callback);
+	}
+
+	/**
+	 * Return a connected device to the pool. It stays connected and its callback is dropped.
+	 * @param device device
+	 */
+	public void release(final JumaDevice device){
+		handler.post(new Runnable() {
+
+			@Override
+			public void run() {
+				Connection connection = connections.get(device);
+				if(connection == null || connection.state != STATE_CONNECTED)
+					return;
+
+				connection.state = STATE_IDLE;
+				connection.callback = null;
+				connection.lastUsed = SystemClock.elapsedRealtime();
+				pump();
+			}
+		});
+	}
+
+	/**
+	 * Disconnect a device, or take it out of the queue
+	 * @param device device
+	 */
+	public void disconnect(final JumaDevice device){
+		handler.post(new Runnable() {
+
+			@Override
+			public void run() {
+				Connection connection = connections.get(device);
+				if(connection == null)
+					return;
+
+				switch (connection.state) {
+				case STATE_QUEUED:
+					queue.remove(connection);
+					remove(connection);
+					break;
+				case STATE_CONNECTING:
+					connection.isCancelled = true;
+					device.cancelConnect();
+					break;
+				case STATE_DISCONNECTING:
+					connection.isReconnecting = false;
+					break;
+				case STATE_CONNECTED:
+				case STATE_IDLE:
+					close(connection);
+					break;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Get the connected devices, in use or idle
+	 * @return devices
+	 */
+	public List<JumaDevice> getConnectedDevices(){
+		List<JumaDevice> devices = new ArrayList<JumaDevice>();
+		synchronized (connections) {
+			for (Connection connection : connections.values()) {
+				if(connection.state == STATE_CONNECTED || connection.state == STATE_IDLE)
+					devices.add(connection.device);
+			}
+		}
+		return devices;
+	}
+
+	/**
+	 * Get a connected device
+	 * @param uuid device uuid
+	 * @return device, null if it is not connected through this manager
+	 */
+	public JumaDevice getConnectedDevice(UUID uuid){
+		synchronized (connections) {
+			for (Connection connection : connections.values()) {
+				if((connection.state == STATE_CONNECTED || connection.state == STATE_IDLE) && connection.device.getUuid().equals(uuid))
+					return connection.device;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Get the number of devices waiting to connect
+	 * @return devices
+	 */
+	public int getQueuedCount(){
+		synchronized (connections) {
+			int count = 0;
+			for (Connection connection : connections.values()) {
+				if(connection.state == STATE_QUEUED)
+					count++;
+			}
+			return count;
+		}
+	}
+
+	/**
+	 * Start the next queued connect if no other one is running and a connection is free
+	 */
+	private void pump(){
+		if(connecting != null || queue.isEmpty())
+			return;
+
+		int open = 0;
+		int closing = 0;
+		Connection idle = null;
+		synchronized (connections) {
+			for (Connection connection : connections.values()) {
+				if(connection.state == STATE_QUEUED)
+					continue;
+				open++;
+				if(connection.state == STATE_DISCONNECTING)
+					closing++;
+				if(connection.state == STATE_IDLE && (idle == null || connection.lastUsed < idle.lastUsed))
+					idle = connection;
+			}
+		}
+
+		if(open >= maxConnections){
+			if(idle != null && closing == 0)
+				close(idle);
+			return;
+		}
+
+		final Connection connection = queue.poll();
+		connection.state = STATE_CONNECTING;
+		connection.attempts++;
+		connecting = connection;
+
+		handler.postDelayed(connection.timeoutTask, connectTimeout);
+
+		if(!connection.device.connectDirect(connection.forwarder))
+			onConnectFailed(connection);
+	}
+
+	private void onConnected(Connection connection){
+		if(connection.state != STATE_CONNECTING)
+			return;
+
+		handler.removeCallbacks(connection.timeoutTask);
+		connection.state = STATE_CONNECTED;
+		connection.attempts = 0;
+		connecting = null;
+
+		if(connection.callback != null)
+			connection.callback.onConnectionStateChange(JumaDevice.SUCCESS, JumaDevice.STATE_CONNECTED);
+
+		pump();
+	}
+
+	private void onConnectFailed(final Connection connection){
+		if(connection.state != STATE_CONNECTING)
+			return;
+
+		handler.removeCallbacks(connection.timeoutTask);
+		connecting = null;
+
+		if(!connection.isCancelled && connection.attempts <= connectRetries){
+			connection.state = STATE_QUEUED;
+			connection.isWaiting = true;
+			handler.postDelayed(new Runnable() {
+
+				@Override
+				public void run() {
+					connection.isWaiting = false;
+					if(connections.get(connection.device) != connection)
+						return;
+
+					queue.add(connection);
+					pump();
+				}
+			}, retryDelay);
+		}else{
+			remove(connection);
+
+			if(connection.callback != null)
+				connection.callback.onConnectionStateChange(JumaDevice.ERROR, JumaDevice.STATE_CONNECTED);
+		}
+
+		pump();
+	}
+
+	private void onDisconnected(Connection connection, int status){
+		if(connection.state == STATE_CONNECTING){
+			onConnectFailed(connection);
+			return;
+		}
+
+		if(connection.state == STATE_QUEUED)
+			return;
+
+		if(connection.isReconnecting){
+			connection.isReconnecting = false;
+			connection.state = STATE_QUEUED;
+			connection.attempts = 0;
+			connection.sequence = sequence++;
+			queue.add(connection);
+			pump();
+			return;
+		}
+
+		remove(connection);
+
+		if(connection.callback != null)
+			connection.callback.onConnectionStateChange(status, JumaDevice.STATE_DISCONNECTED);
+
+		pump();
+	}
+
+	private void close(Connection connection){
+		connection.state = STATE_DISCONNECTING;
+		if(!connection.device.disconnect())
+			onDisconnected(connection, JumaDevice.ERROR);
+	}
+
+	private void remove(Connection connection){
+		synchronized (connections) {
+			if(connections.get(connection.device) == connection)
+				connections.remove(connection.device);
+		}
+	}
+
+	/**
+	 * A managed device. Its state is only changed on the SDK thread.
+	 */
+	private class Connection {
+
+		final JumaDevice device;
+		volatile int state = STATE_QUEUED;
+		volatile JumaDeviceCallback callback = null;
+		int priority = PRIORITY_NORMAL;
+		long sequence = 0;
+		int attempts = 0;
+		long lastUsed = 0;
+		boolean isWaiting = false;
+		boolean isReconnecting = false;
+		boolean isCancelled = false;
+
+		Connection(JumaDevice device) {
+			this.device = device;
+		}
+
+		final Runnable timeoutTask = new Runnable() {
+
+			@Override
+			public void run() {
+				if(state == STATE_CONNECTING && !device.cancelConnect())
+					onConnectFailed(Connection.this);
+			}
+		};
+
+		/**
+		 * Connected to the device without its executor. Routes connection state changes through the manager
+		 * and everything else to the caller's callback, which is wrapped in the executor of the device.
+		 */
+		final JumaDeviceCallback forwarder = new JumaDeviceCallback() {
+
+			@Override
+			public void onConnectionStateChange(final int status, final int newState) {
+				handler.post(new Runnable() {
+
+					@Override
+					public void run() {
+						if(newState == JumaDevice.STATE_CONNECTED){
+							if(status == JumaDevice.SUCCESS)
+								onConnected(Connection.this);
+							else
+								onConnectFailed(Connection.this);
+						}else{
+							onDisconnected(Connection.this, status);
+						}
+					}
+				});
+			}
+
+			@Override
+			public void onReceive(byte type, byte[] buffer, int offset, int length) {
+				JumaDeviceCallback callback = Connection.this.callback;
+				if(callback != null)
+					callback.onReceive(type, buffer, offset, length);
+			}
+
+			@Override
+			public void onSend(int status) {
+				JumaDeviceCallback callback = Connection.this.callback;
+				if(callback != null)
+					callback.onSend(status);
+			}
+
+			@Override
+			public void onRemoteRssi(int status, int rssi) {
+				JumaDeviceCallback callback = Connection.this.callback;
+				if(callback != null)
+					callback.onRemoteRssi(status, rssi);
+			}
+
+			@Override
+			public void onUpdateFirmware(int status) {
+				JumaDeviceCallback callback = Connection.this.callback;
+				if(callback != null)
+					callback.onUpdateFirmware(status);
+			}
+
+			@Override
+			public void onUpdateFirmwareProgress(long bytesSent, long totalBytes, long bytesPerSecond, long etaMillis) {
+				JumaDeviceCallback callback = Connection.this.callback;
+				if(callback != null)
+					callback.onUpdateFirmwareProgress(bytesSent, totalBytes, bytesPerSecond, etaMillis);
+			}
+		};
+	}
+}
@@ -0,0 +1,111 @@
+package com.juma.sdk;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Build;
+import android.os.ParcelUuid;
+import android.util.Log;
+
+/**
+ * Scanning through {@link BluetoothLeScanner}, with the Juma service and the device
+ * name pushed into scan filters so the controller drops other adverts.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+final class LeScannerBackend {
+
+	private static final ParcelUuid JUMA_SERVICE_UUID = ParcelUuid.fromString("0000FE90-0000-1000-8000-00805F9B34FB");
+
+	private final ScanHelper scanHelper;
+	private BluetoothLeScanner scanner = null;
+
+	LeScannerBackend(ScanHelper scanHelper) {
+		this.scanHelper = scanHelper;
+	}
+
+	/**
+	 * Start scan
+	 * @param adapter local bluetooth adapter
+	 * @param name device name, null or empty for any name
+	 * @param scanMode one of the ScanHelper.SCAN_MODE values
+	 * @param reportDelay controller batch report delay in milliseconds, 0 for immediate reports
+	 * @return result.true/false
+	 */
+	boolean start(BluetoothAdapter adapter, String name, int scanMode, long reportDelay){
+		scanner = adapter.getBluetoothLeScanner();
+		if(scanner == null)
+			return false;
+
+		ScanFilter.Builder filter = new ScanFilter.Builder().setServiceUuid(JUMA_SERVICE_UUID);
+		if(name != null && !name.equals(""))
+			filter.setDeviceName(name);
+
+		List<ScanFilter> filters = new ArrayList<ScanFilter>(1);
+		filters.add(filter.build());
+
+		ScanSettings.Builder settings = new ScanSettings.Builder().setScanMode(scanMode);
+		if(reportDelay > 0 && adapter.isOffloadedScanBatchingSupported())
+			settings.setReportDelay(reportDelay);
+
+		try {
+			scanner.startScan(filters, settings.build(), scanCallback);
+		} catch (Exception e) {
+			Log.e(LeScannerBackend.class.getName(), "Start scan failed", e);
+			scanner = null;
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Stop scan
+	 */
+	void stop(){
+		if(scanner == null)
+			return;
+
+		try {
+			scanner.flushPendingScanResults(scanCallback);
+			scanner.stopScan(scanCallback);
+		} catch (Exception e) {
+			Log.e(LeScannerBackend.class.getName(), "Stop scan failed", e);
+		}
+		scanner = null;
+	}
+
+	private void deliver(ScanResult result){
+		ScanRecord record = result.getScanRecord();
+		if(record != null)
+			scanHelper.onAdvertisement(result.getDevice(), result.getRssi(), record.getBytes());
+	}
+
+	private ScanCallback scanCallback = new ScanCallback() {
+
+		@Override
+		public void onScanResult(int callbackType, ScanResult result) {
+			deliver(result);
+		}
+
+		@Override
+		public void onBatchScanResults(List<ScanResult> results) {
+			for (int i = 0; i < results.size(); i++) {
+				deliver(results.get(i));
+			}
+		}
+
+		@Override
+		public void onScanFailed(int errorCode) {
+			Log.e(LeScannerBackend.class.getName(), "Scan failed = "+errorCode);
+			scanner = null;
+			scanHelper.onScanFailed();
+		}
+	};
+}
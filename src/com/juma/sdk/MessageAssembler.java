@@ -0,0 +1,90 @@
+package com.juma.sdk;
+
+import android.util.Log;
+
+/**
+ * Rebuilds messages sent by a device over several notifications of one characteristic.
+ * The first notification starts with the type and length header, the following ones carry
+ * the rest of the data. Messages are assembled in place in a buffer allocated once.
+ */
+final class MessageAssembler {
+
+	static final int HEADER_LENGTH = 2;
+	static final int MAX_MESSAGE_LENGTH = 255;
+
+	private final byte[] buffer = new byte[HEADER_LENGTH + MAX_MESSAGE_LENGTH];
+	private int expected = -1;
+	private int filled = 0;
+	private long lastTime = 0;
+
+	/**
+	 * Drop the message being assembled
+	 */
+	void reset(){
+		expected = -1;
+		filled = 0;
+	}
+
+	/**
+	 * Add a notification
+	 * @param value notification value
+	 * @param now current time
+	 * @param timeout time after which a partial message is dropped, 0 to keep it
+	 * @return true if a message is complete, it stays in {@link #getBuffer()} until the next call
+	 */
+	boolean add(byte[] value, long now, long timeout){
+		if(expected >= 0 && timeout > 0 && now - lastTime > timeout){
+			Log.e(MessageAssembler.class.getName(), "Partial message timed out = "+filled+"/"+expected);
+			reset();
+		}
+		lastTime = now;
+
+		if(expected < 0){
+			if(value.length < HEADER_LENGTH)
+				return false;
+
+			// Bytes past the length in the header, e.g. padding, are ignored
+			int length = value[1] & 0xff;
+			int count = Math.min(value.length - HEADER_LENGTH, length);
+
+			System.arraycopy(value, 0, buffer, 0, HEADER_LENGTH + count);
+			expected = length;
+			filled = count;
+		}else{
+			if(value.length > expected - filled){
+				Log.e(MessageAssembler.class.getName(), "Packet beyond the message length = "+(filled + value.length)+"/"+expected);
+				reset();
+				return false;
+			}
+
+			System.arraycopy(value, 0, buffer, HEADER_LENGTH + filled, value.length);
+			filled += value.length;
+		}
+
+		if(filled < expected)
+			return false;
+
+		expected = -1;
+		return true;
+	}
+
+	/**
+	 * Get the assembly buffer, holding the type, length and data of a complete message
+	 * @return buffer
+	 */
+	byte[] getBuffer(){
+		return buffer;
+	}
+
+	byte getType(){
+		return buffer[0];
+	}
+
+	/**
+	 * Get the data length of the complete message
+	 * @return length
+	 */
+	int getLength(){
+		return filled;
+	}
+}
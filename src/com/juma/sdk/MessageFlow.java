@@ -0,0 +1,89 @@
+package com.juma.sdk;
+
+/**
+ * Interfaces of a stream of received messages with demand driven delivery,
+ * modelled on java.util.concurrent.Flow which Android only has from API level 30.
+ * See {@link JumaDevice#getMessagePublisher(int, int)}.
+ */
+public final class MessageFlow {
+
+	/**
+	 * Drop the message that does not fit into a full buffer
+	 */
+	public static final int OVERFLOW_DROP_NEWEST = 0;
+
+	/**
+	 * Drop the oldest buffered message to make room
+	 */
+	public static final int OVERFLOW_DROP_OLDEST = 1;
+
+	/**
+	 * Drop every buffered message and keep only the new one
+	 */
+	public static final int OVERFLOW_LATEST = 2;
+
+	/**
+	 * End the stream with onError
+	 */
+	public static final int OVERFLOW_ERROR = 3;
+
+	private MessageFlow() {
+	}
+
+	public interface Publisher{
+		public void subscribe(Subscriber subscriber);
+	}
+
+	/**
+	 * Receiver of a stream. Its methods are called one at a time, never on the Bluetooth thread,
+	 * and onNext only as often as requested through the subscription.
+	 */
+	public interface Subscriber{
+		public void onSubscribe(Subscription subscription);
+		public void onNext(Message message);
+		public void onError(Throwable throwable);
+		public void onComplete();
+	}
+
+	public interface Subscription{
+
+		/**
+		 * Ask for more messages
+		 * @param n number of messages, more than 0
+		 */
+		public void request(long n);
+
+		/**
+		 * Stop the stream, buffered messages are dropped
+		 */
+		public void cancel();
+	}
+
+	/**
+	 * A received message, owned by the subscriber.
+	 */
+	public static final class Message{
+
+		private final JumaDevice device;
+		private final byte type;
+		private final byte[] data;
+
+		Message(JumaDevice device, byte type, byte[] data) {
+			this.device = device;
+			this.type = type;
+			this.data = data;
+		}
+
+		public JumaDevice getDevice() {
+			return device;
+		}
+
+		public byte getType() {
+			return type;
+		}
+
+		public byte[] getData() {
+			return data;
+		}
+	}
+}
@@ -0,0 +1,101 @@
+package com.juma.sdk;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Dispatch table of message handlers, one slot per message type.
+ * Each slot holds an array of handlers that is replaced as a whole when a handler is added or removed,
+ * so routing reads a slot once and never locks.
+ */
+final class MessageRouter {
+
+	static final int TYPE_COUNT = 128;
+
+	private final AtomicReferenceArray<JumaDevice.MessageHandler[]> handlers = new AtomicReferenceArray<JumaDevice.MessageHandler[]>(TYPE_COUNT);
+	private volatile JumaDevice.MessageHandler defaultHandler = null;
+
+	/**
+	 * Add a handler to a type
+	 * @return false if the handler is registered for the type already
+	 */
+	boolean add(int type, JumaDevice.MessageHandler handler){
+		while (true) {
+			JumaDevice.MessageHandler[] current = handlers.get(type);
+			int count = current == null ? 0 : current.length;
+
+			for (int i = 0; i < count; i++) {
+				if(current[i] == handler)
+					return false;
+			}
+
+			JumaDevice.MessageHandler[] next = new JumaDevice.MessageHandler[count + 1];
+			if(count > 0)
+				System.arraycopy(current, 0, next, 0, count);
+			next[count] = handler;
+
+			if(handlers.compareAndSet(type, current, next))
+				return true;
+		}
+	}
+
+	/**
+	 * Remove a handler from a type
+	 * @return false if the handler is not registered for the type
+	 */
+	boolean remove(int type, JumaDevice.MessageHandler handler){
+		while (true) {
+			JumaDevice.MessageHandler[] current = handlers.get(type);
+			if(current == null)
+				return false;
+
+			int index = -1;
+			for (int i = 0; i < current.length; i++) {
+				if(current[i] == handler){
+					index = i;
+					break;
+				}
+			}
+			if(index < 0)
+				return false;
+
+			JumaDevice.MessageHandler[] next = null;
+			if(current.length > 1){
+				next = new JumaDevice.MessageHandler[current.length - 1];
+				System.arraycopy(current, 0, next, 0, index);
+				System.arraycopy(current, index + 1, next, index, current.length - index - 1);
+			}
+
+			if(handlers.compareAndSet(type, current, next))
+				return true;
+		}
+	}
+
+	void setDefault(JumaDevice.MessageHandler handler){
+		this.defaultHandler = handler;
+	}
+
+	/**
+	 * Check whether a message of a type would reach a handler
+	 * @return result.true/false
+	 */
+	boolean hasHandlers(int type){
+		return handlers.get(type) != null || defaultHandler != null;
+	}
+
+	/**
+	 * Call the handlers of the message type, or the default handler if the type has none
+	 */
+	void route(JumaDevice device, byte type, byte[] buffer, int offset, int length){
+		JumaDevice.MessageHandler[] current = handlers.get(type);
+		if(current != null){
+			for (int i = 0; i < current.length; i++) {
+				current[i].onMessage(device, type, buffer, offset, length);
+			}
+			return;
+		}
+
+		JumaDevice.MessageHandler handler = defaultHandler;
+		if(handler != null)
+			handler.onMessage(device, type, buffer, offset, length);
+	}
+}
@@ -0,0 +1,224 @@
+package com.juma.sdk;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+
+import android.util.Log;
+
+/**
+ * Subscription of one subscriber to the messages of a device.
+ * Received messages are copied into a bounded buffer and handed to the subscriber on an executor,
+ * as far as it requested them. The buffer overflows according to the strategy of the publisher.
+ * A subscriber that throws is cancelled and gets the exception through onError.
+ */
+final class MessageSubscription implements MessageFlow.Subscription, Runnable {
+
+	private final JumaDevice device;
+	private final MessageFlow.Subscriber subscriber;
+	private final Executor executor;
+	private final int capacity;
+	private final int overflow;
+	private final ArrayDeque<MessageFlow.Message> queue = new ArrayDeque<MessageFlow.Message>();
+
+	private long requested = 0;
+	private boolean isSubscribed = false;
+	private boolean isScheduled = false;
+	private boolean isCancelled = false;
+	private boolean isCompleted = false;
+	private boolean isTerminated = false;
+	private Throwable error = null;
+
+	MessageSubscription(JumaDevice device, MessageFlow.Subscriber subscriber, Executor executor, int capacity, int overflow) {
+		this.device = device;
+		this.subscriber = subscriber;
+		this.executor = executor;
+		this.capacity = Math.max(1, capacity);
+		this.overflow = overflow;
+	}
+
+	/**
+	 * Call onSubscribe on the executor
+	 */
+	void start(){
+		synchronized (this) {
+			isScheduled = true;
+		}
+		executor.execute(this);
+	}
+
+	/**
+	 * Buffer a received message
+	 */
+	void offer(byte type, byte[] buffer, int offset, int length){
+		synchronized (this) {
+			if(isCancelled || isCompleted || error != null)
+				return;
+
+			if(queue.size() >= capacity){
+				switch (overflow) {
+				case MessageFlow.OVERFLOW_DROP_OLDEST:
+					queue.poll();
+					break;
+				case MessageFlow.OVERFLOW_LATEST:
+					queue.clear();
+					break;
+				case MessageFlow.OVERFLOW_ERROR:
+					queue.clear();
+					error = new IllegalStateException("Message buffer overflow, capacity = "+capacity);
+					break;
+				default:
+					return;
+				}
+			}
+
+			if(error == null){
+				byte[] data = new byte[length];
+				System.arraycopy(buffer, offset, data, 0, length);
+				queue.add(new MessageFlow.Message(device, type, data));
+			}
+		}
+
+		schedule();
+	}
+
+	/**
+	 * End the stream with onComplete after the buffered messages
+	 */
+	void complete(){
+		synchronized (this) {
+			isCompleted = true;
+		}
+		schedule();
+	}
+
+	/**
+	 * End the stream with onError, buffered messages are dropped
+	 */
+	void fail(Throwable failure){
+		synchronized (this) {
+			if(isCancelled || isCompleted || error != null)
+				return;
+			queue.clear();
+			error = failure;
+		}
+		schedule();
+	}
+
+	@Override
+	public void request(long n) {
+		synchronized (this) {
+			if(isCancelled || isTerminated)
+				return;
+
+			if(n <= 0){
+				queue.clear();
+				error = new IllegalArgumentException("Requested "+n+" messages");
+			}else{
+				requested = requested + n < 0 ? Long.MAX_VALUE : requested + n;
+			}
+		}
+		schedule();
+	}
+
+	@Override
+	public void cancel() {
+		synchronized (this) {
+			isCancelled = true;
+			queue.clear();
+		}
+		device.removeSubscription(this);
+	}
+
+	private void schedule(){
+		synchronized (this) {
+			if(isScheduled || isTerminated)
+				return;
+			isScheduled = true;
+		}
+		executor.execute(this);
+	}
+
+	@Override
+	public void run() {
+		boolean subscribe;
+		synchronized (this) {
+			subscribe = !isSubscribed;
+			isSubscribed = true;
+		}
+		if(subscribe){
+			try {
+				subscriber.onSubscribe(this);
+			} catch (RuntimeException e) {
+				abort(e);
+				return;
+			}
+		}
+
+		while (true) {
+			MessageFlow.Message message = null;
+			Throwable failure = null;
+			boolean done = false;
+
+			synchronized (this) {
+				if(isCancelled || isTerminated){
+					isScheduled = false;
+					return;
+				}
+
+				if(error != null){
+					failure = error;
+					isTerminated = true;
+				}else if(!queue.isEmpty() && requested > 0){
+					message = queue.poll();
+					if(requested != Long.MAX_VALUE)
+						requested--;
+				}else if(queue.isEmpty() && isCompleted){
+					done = true;
+					isTerminated = true;
+				}else{
+					isScheduled = false;
+					return;
+				}
+			}
+
+			if(failure != null || done){
+				device.removeSubscription(this);
+				try {
+					if(failure != null)
+						subscriber.onError(failure);
+					else
+						subscriber.onComplete();
+				} catch (RuntimeException e) {
+					Log.e(MessageSubscription.class.getName(), "Subscriber failed", e);
+				}
+				continue;
+			}
+
+			try {
+				subscriber.onNext(message);
+			} catch (RuntimeException e) {
+				abort(e);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Cancel the subscription after the subscriber threw and hand it the exception
+	 */
+	private void abort(RuntimeException e){
+		synchronized (this) {
+			isCancelled = true;
+			isTerminated = true;
+			isScheduled = false;
+			queue.clear();
+		}
+		device.removeSubscription(this);
+
+		try {
+			subscriber.onError(e);
+		} catch (RuntimeException failure) {
+			Log.e(MessageSubscription.class.getName(), "Subscriber failed", failure);
+		}
+	}
+}
@@ -0,0 +1,96 @@
+package com.juma.sdk;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.util.UUID;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.util.Log;
+
+/**
+ * Persisted progress of firmware updates, one checkpoint per device.
+ * A checkpoint records the image hash and the number of packets the device acknowledged.
+ */
+final class OtaCheckpoint {
+
+	private static final String PREFERENCES_NAME = "com.juma.sdk.ota";
+	private static final String KEY_HASH = ".hash";
+	private static final String KEY_SIZE = ".size";
+	private static final String KEY_PACKETS = ".packets";
+
+	private OtaCheckpoint() {
+	}
+
+	/**
+	 * Hash a firmware image
+	 * @param image image, from its position to its limit
+	 * @return SHA-1 as hex, null on failure
+	 */
+	static String hash(ByteBuffer image){
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			digest.update(image.duplicate());
+			byte[] result = digest.digest();
+
+			String HEX = "0123456789ABCDEF";
+			StringBuffer sb = new StringBuffer(2*result.length);
+			for (int i = 0; i < result.length; i++) {
+				sb.append(HEX.charAt((result[i]>>4)&0x0f)).append(HEX.charAt(result[i]&0x0f));
+			}
+			return sb.toString();
+		} catch (Exception e) {
+			Log.e(OtaCheckpoint.class.getName(), "Hash failed", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Get the packets acknowledged by a device for an image
+	 * @return acknowledged packets, 0 if there is no checkpoint for this image
+	 */
+	static int load(Context context, UUID device, String hash, int size){
+		if(hash == null)
+			return 0;
+
+		SharedPreferences preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+		String key = device.toString();
+
+		if(!hash.equals(preferences.getString(key + KEY_HASH, null)) || preferences.getInt(key + KEY_SIZE, -1) != size)
+			return 0;
+
+		return preferences.getInt(key + KEY_PACKETS, 0);
+	}
+
+	/**
+	 * Check whether a device has a checkpoint for an image of this size,
+	 * before the hash of an image still loading is known
+	 * @return result.true/false
+	 */
+	static boolean exists(Context context, UUID device, int size){
+		SharedPreferences preferences = context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE);
+		String key = device.toString();
+		return preferences.getInt(key + KEY_SIZE, -1) == size && preferences.getInt(key + KEY_PACKETS, 0) > 0;
+	}
+
+	static void save(Context context, UUID device, String hash, int size, int packets){
+		if(hash == null)
+			return;
+
+		String key = device.toString();
+		context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE).edit()
+		.putString(key + KEY_HASH, hash)
+		.putInt(key + KEY_SIZE, size)
+		.putInt(key + KEY_PACKETS, packets)
+		.apply();
+	}
+
+	static void clear(Context context, UUID device){
+		String key = device.toString();
+		context.getSharedPreferences(PREFERENCES_NAME, Context.MODE_PRIVATE).edit()
+		.remove(key + KEY_HASH)
+		.remove(key + KEY_SIZE)
+		.remove(key + KEY_PACKETS)
+		.apply();
+	}
+}
@@ -0,0 +1,245 @@
+package com.juma.sdk;
+
+import java.nio.ByteBuffer;
+
+import android.os.SystemClock;
+
+/**
+ * Cursor over a firmware image being sent to a device.
+ * Packets are read from the image in place, the image is never copied.
+ * The image may still be loading, only its available part is sent.
+ * Up to a window of packets may be in flight, the cursor rewinds to the first
+ * packet that has to be sent again. Acknowledgements of packets that were already
+ * on the air when the cursor rewound are skipped.
+ */
+final class OtaSession {
+
+	static final int PACKET_HEADER_LENGTH = 2;
+	static final int PACKET_DATA_LENGTH = 196;
+
+	private final ByteBuffer image;
+	private final int base;
+	private final int totalBytes;
+	private final int totalPackets;
+	private final long startTime;
+	private final byte[][] packets;
+	private String hash;
+	private int available;
+	private volatile boolean isStarted = false;
+	private int resumedPackets = 0;
+	private int packetIndex = 0;
+	private int ackedPackets = 0;
+	private int retransmissions = 0;
+	private int staleAcks = 0;
+
+	OtaSession(ByteBuffer image, int windowSize, String hash) {
+		this.hash = hash;
+		this.image = image.duplicate();
+		this.base = this.image.position();
+		this.totalBytes = this.image.remaining();
+		this.available = totalBytes;
+		this.totalPackets = (totalBytes + PACKET_DATA_LENGTH - 1) / PACKET_DATA_LENGTH;
+		this.startTime = SystemClock.elapsedRealtime();
+		this.packets = new byte[Math.max(windowSize, 1)][];
+	}
+
+	int getWindowSize(){
+		return packets.length;
+	}
+
+	boolean hasRemaining(){
+		return image.hasRemaining();
+	}
+
+	/**
+	 * Check whether the next packet is loaded, a packet is only cut once it is loaded in full
+	 * @return result.true/false
+	 */
+	boolean hasAvailable(){
+		int next = image.position() - base;
+		return next < totalBytes && (available >= totalBytes || available - next >= PACKET_DATA_LENGTH);
+	}
+
+	/**
+	 * Set how much of an image still loading may be sent
+	 * @param available loaded bytes from the start of the image
+	 */
+	void setAvailable(int available){
+		this.available = available;
+	}
+
+	/**
+	 * Check whether the device accepted the begin message, or the session resumed an earlier one
+	 * @return result.true/false
+	 */
+	boolean isStarted(){
+		return isStarted;
+	}
+
+	void start(){
+		isStarted = true;
+	}
+
+	/**
+	 * Check whether the device acknowledged every packet
+	 * @return result.true/false
+	 */
+	boolean isComplete(){
+		return ackedPackets >= totalPackets;
+	}
+
+	/**
+	 * Get the number of image bytes acknowledged by the device
+	 * @return bytes sent
+	 */
+	int getBytesSent(){
+		return Math.min(ackedPackets * PACKET_DATA_LENGTH, totalBytes);
+	}
+
+	int getTotalBytes(){
+		return totalBytes;
+	}
+
+	int getTotalPackets(){
+		return totalPackets;
+	}
+
+	String getHash(){
+		return hash;
+	}
+
+	/**
+	 * Set the image hash once an image loaded while sending is complete
+	 * @param hash SHA-1 as hex
+	 */
+	void setHash(String hash){
+		this.hash = hash;
+	}
+
+	/**
+	 * Start from a packet already acknowledged in an earlier session
+	 * @param packets acknowledged packets
+	 */
+	void resume(int packets){
+		isStarted = true;
+		resumedPackets = packets;
+		ackedPackets = packets;
+		packetIndex = packets;
+		image.position(base + packets * PACKET_DATA_LENGTH);
+	}
+
+	/**
+	 * Check whether the session resumed an earlier one and the device did not acknowledge anything since
+	 * @return result.true/false
+	 */
+	boolean isUnconfirmedResume(){
+		return resumedPackets > 0 && ackedPackets == resumedPackets;
+	}
+
+	/**
+	 * Get the number of packets handed out, not limited to the 8 bit index on the wire
+	 * @return packet count
+	 */
+	int getPacketIndex(){
+		return packetIndex;
+	}
+
+	int getAckedPackets(){
+		return ackedPackets;
+	}
+
+	/**
+	 * Get the number of packets sent but not acknowledged yet
+	 * @return packets in flight
+	 */
+	int getInFlight(){
+		return packetIndex - ackedPackets;
+	}
+
+	/**
+	 * Record the acknowledgement of the oldest packet in flight
+	 */
+	void ack(){
+		if(ackedPackets < packetIndex)
+			ackedPackets++;
+	}
+
+	/**
+	 * Move the cursor back to an unacknowledged packet
+	 * @param packet packet to send next
+	 * @param staleAcks packets still on the air whose out of order acknowledgements are skipped
+	 * @return number of rewinds so far
+	 */
+	int rewind(int packet, int staleAcks){
+		packetIndex = packet;
+		image.position(base + packet * PACKET_DATA_LENGTH);
+		this.staleAcks = Math.max(staleAcks, 0);
+		return ++retransmissions;
+	}
+
+	/**
+	 * Get the number of rewinds, packets cut before the last rewind carry an older count
+	 * @return rewinds
+	 */
+	int getRetransmissions(){
+		return retransmissions;
+	}
+
+	/**
+	 * Take an out of order acknowledgement as one of a packet sent before the last rewind
+	 * @return true if it is skipped
+	 */
+	boolean skipStaleAck(){
+		if(staleAcks <= 0)
+			return false;
+		staleAcks--;
+		return true;
+	}
+
+	/**
+	 * Get the transfer rate since the start of the session
+	 * @return bytes per second, 0 if unknown
+	 */
+	long getRate(){
+		long elapsed = SystemClock.elapsedRealtime() - startTime;
+		if(elapsed <= 0)
+			return 0;
+		return (getBytesSent() - Math.min(resumedPackets * PACKET_DATA_LENGTH, totalBytes)) * 1000L / elapsed;
+	}
+
+	/**
+	 * Get the estimated time to send the rest of the image
+	 * @return milliseconds, -1 if unknown
+	 */
+	long getEta(){
+		long rate = getRate();
+		if(rate <= 0)
+			return -1;
+		return (totalBytes - getBytesSent()) * 1000L / rate;
+	}
+
+	/**
+	 * Cut the next data packet. Packet arrays are reused round robin over the window,
+	 * an array is only refilled once the packet it held has been acknowledged.
+	 * @param header packet header
+	 * @return packet
+	 */
+	byte[] nextPacket(byte header){
+		int count = Math.min(PACKET_DATA_LENGTH, image.remaining());
+		int slot = packetIndex % packets.length;
+
+		byte[] buffer = packets[slot];
+		if(buffer == null || buffer.length != PACKET_HEADER_LENGTH + count){
+			buffer = new byte[PACKET_HEADER_LENGTH + count];
+			if(count == PACKET_DATA_LENGTH)
+				packets[slot] = buffer;
+		}
+
+		buffer[0] = header;
+		buffer[1] = (byte) packetIndex;
+		image.get(buffer, PACKET_HEADER_LENGTH, count);
+
+		packetIndex++;
+		return buffer;
+	}
+}
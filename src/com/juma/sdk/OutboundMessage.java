@@ -0,0 +1,74 @@
+package com.juma.sdk;
+
+/**
+ * A message being cut into packets.
+ * The type and length header is written in front of the payload on the fly,
+ * packets are copied straight from the caller's array into pooled packet arrays.
+ */
+final class OutboundMessage {
+
+	static final int HEADER_LENGTH = 2;
+
+	private static final byte[] EMPTY = new byte[0];
+
+	/**
+	 * Completion of a message sent by the SDK itself, reported instead of onSend
+	 */
+	interface Listener{
+		void onSent(int status);
+	}
+
+	final Listener listener;
+	final Object owner;
+
+	private final byte type;
+	private final byte[] payload;
+	private final int length;
+	private int position = 0;
+
+	OutboundMessage(byte type, byte[] payload, Listener listener) {
+		this(type, payload, listener, null);
+	}
+
+	/**
+	 * @param owner tag of the messages {@link SendQueue#remove(Object)} takes back
+	 */
+	OutboundMessage(byte type, byte[] payload, Listener listener, Object owner) {
+		this.listener = listener;
+		this.owner = owner;
+		this.type = type;
+		this.payload = payload == null ? EMPTY : payload;
+		this.length = HEADER_LENGTH + this.payload.length;
+	}
+
+	int getPayloadLength(){
+		return payload.length;
+	}
+
+	boolean hasRemaining(){
+		return position < length;
+	}
+
+	/**
+	 * Cut the next packet
+	 * @param pool packet arrays to fill
+	 * @param maxLength maximum packet length
+	 * @return packet, valid until the next packet of the same length is taken from the pool
+	 */
+	byte[] nextPacket(PacketPool pool, int maxLength){
+		int packetLength = Math.min(maxLength, length - position);
+		byte[] packet = pool.get(packetLength);
+
+		int i = 0;
+		while (position < HEADER_LENGTH && i < packetLength) {
+			packet[i++] = position == 0 ? type : (byte) payload.length;
+			position++;
+		}
+
+		int count = packetLength - i;
+		System.arraycopy(payload, position - HEADER_LENGTH, packet, i, count);
+		position += count;
+
+		return packet;
+	}
+}
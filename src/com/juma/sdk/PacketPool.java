@@ -0,0 +1,25 @@
+package com.juma.sdk;
+
+/**
+ * One reusable array per packet length.
+ * Safe because the GATT scheduler has finished with a packet before the next one is cut.
+ */
+final class PacketPool {
+
+	private byte[][] packets = new byte[0][];
+
+	byte[] get(int length){
+		if(length >= packets.length){
+			byte[][] grown = new byte[length + 1][];
+			System.arraycopy(packets, 0, grown, 0, packets.length);
+			packets = grown;
+		}
+
+		byte[] packet = packets[length];
+		if(packet == null){
+			packet = new byte[length];
+			packets[length] = packet;
+		}
+		return packet;
+	}
+}
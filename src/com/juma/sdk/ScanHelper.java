@@ -1,21 +1,16 @@
 package com.juma.sdk;
 
-import java.security.SecureRandom;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.Executor;
 
-import javax.crypto.Cipher;
-import javax.crypto.KeyGenerator;
-import javax.crypto.SecretKey;
-import javax.crypto.spec.SecretKeySpec;
-
-import android.annotation.SuppressLint;
 import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothAdapter.LeScanCallback;
 import android.bluetooth.BluetoothDevice;
 import android.bluetooth.BluetoothManager;
 import android.content.Context;
+import android.os.Build;
+import android.os.SystemClock;
 
 public class ScanHelper {
 
@@ -24,12 +19,24 @@ public class ScanHelper {
 	private boolean isScanning = false;
 	private String name = null;
 	private ScanCallback callback = null;
+	private final CallbackDispatcher dispatcher = new CallbackDispatcher();
+	private final DeviceRegistry registry = new DeviceRegistry();
+	private final DiscoveryBatch batch = new DiscoveryBatch();
+	private LeScannerBackend leScanner = null;
+	private LeScannerBackend activeLeScanner = null;
+	private boolean useLegacyScan = false;
+	private int scanMode = SCAN_MODE_LOW_LATENCY;
+	private long reportDelay = 0;
 
-	private static final String JUMA_SERVICE_UUID = "90FE";
+	private static final int JUMA_SERVICE_UUID = 0xFE90;
 
 	public static final int STATE_START_SCAN = 0;
 	public static final int STATE_STOP_SCAN = 1;
 
+	public static final int SCAN_MODE_LOW_POWER = 0;
+	public static final int SCAN_MODE_BALANCED = 1;
+	public static final int SCAN_MODE_LOW_LATENCY = 2;
+
 	private static final String SDK_VERSION = "02.00.00.01.151203";
 
 	public ScanHelper(Context context, ScanCallback callback) {
@@ -51,11 +58,14 @@ public class ScanHelper {
 		if(!checkBluetoothState())
 			return false;
 
+		boolean nameChanged = name == null ? this.name != null : !name.equals(this.name);
+
 		this.name = name;
 
 		if(!isScanning){
-			if(bluetoothAdapter.startLeScan(leScanCallback)){
+			if(startBackend()){
 				isScanning = true;
+				scheduleEviction();
 				updateScanState(STATE_START_SCAN);
 				return true;
 			}else{
@@ -63,6 +73,15 @@ public class ScanHelper {
 			}
 			
 		}else {
+			if(nameChanged && activeLeScanner != null){
+				stopBackend();
+				if(!startBackend()){
+					isScanning = false;
+					SdkThread.getHandler().removeCallbacks(evictionTask);
+					updateScanState(STATE_STOP_SCAN);
+					return false;
+				}
+			}
 			updateScanState(STATE_START_SCAN);
 			return true;	
 		}
@@ -78,7 +97,9 @@ public class ScanHelper {
 
 		if(isScanning){
 			isScanning = false;
-			bluetoothAdapter.stopLeScan(leScanCallback);
+			stopBackend();
+			SdkThread.getHandler().removeCallbacks(evictionTask);
+			flushBatch();
 
 			new Thread(new Runnable() {
 
@@ -101,6 +122,122 @@ public class ScanHelper {
 		return true;
 	}
 
+	/**
+	 * Set the scan mode used by the BluetoothLeScanner backend (Android 5.0+).
+	 * Takes effect on the next startScan.
+	 * @param scanMode {@link #SCAN_MODE_LOW_POWER}, {@link #SCAN_MODE_BALANCED} or {@link #SCAN_MODE_LOW_LATENCY}
+	 */
+	public void setScanMode(int scanMode){
+		this.scanMode = scanMode;
+	}
+
+	/**
+	 * Let the controller batch scan results and report them after a delay (Android 5.0+).
+	 * Ignored if the controller does not support batching. Takes effect on the next startScan.
+	 * @param millis report delay in milliseconds, 0 for immediate reports
+	 */
+	public void setReportDelay(long millis){
+		this.reportDelay = millis;
+	}
+
+	/**
+	 * Force the legacy BluetoothAdapter.startLeScan backend even where BluetoothLeScanner is available.
+	 * Takes effect on the next startScan.
+	 * @param useLegacyScan true to use the legacy backend
+	 */
+	public void setUseLegacyScan(boolean useLegacyScan){
+		this.useLegacyScan = useLegacyScan;
+	}
+
+	/**
+	 * Set the minimum time between two reports of the same device.
+	 * New devices are always reported at once.
+	 * @param millis interval in milliseconds, 0 reports every advert
+	 */
+	public void setReportInterval(long millis){
+		registry.setReportInterval(millis);
+	}
+
+	/**
+	 * Set the rssi change needed to report a known device again
+	 * @param dbm rssi change in dBm, 0 reports every advert
+	 */
+	public void setRssiThreshold(int dbm){
+		registry.setRssiThreshold(dbm);
+	}
+
+	/**
+	 * Set the time after which a silent device is forgotten and reported lost
+	 * through {@link DeviceLostCallback}. Connected devices are kept.
+	 * @param millis timeout in milliseconds, 0 keeps devices forever
+	 */
+	public void setDeviceTimeout(long millis){
+		registry.setTimeout(millis);
+		if(isScanning){
+			SdkThread.getHandler().removeCallbacks(evictionTask);
+			scheduleEviction();
+		}
+	}
+
+	/**
+	 * Deliver discoveries in batches instead of one onDiscover per advert.
+	 * A batch holds one record per device with its latest rssi and is delivered
+	 * every interval or as soon as it holds maxResults devices, whichever comes first.
+	 * Callbacks implementing {@link BatchScanCallback} get the whole batch,
+	 * others get one onDiscover per record.
+	 * @param intervalMillis batch interval in milliseconds, 0 for no time limit
+	 * @param maxResults batch size, 0 for no size limit
+	 */
+	public void setBatchMode(long intervalMillis, int maxResults){
+		batch.configure(intervalMillis, maxResults);
+		if(!batch.isEnabled())
+			flushBatch();
+	}
+
+	/**
+	 * Set the executor the scan callbacks run on, in order, instead of the scan thread.
+	 * When more than queueCapacity callbacks wait, further onDiscover calls are dropped and counted;
+	 * batches, lost devices and scan state changes are always delivered.
+	 * @param executor executor, null to call back on the Bluetooth thread
+	 * @param queueCapacity callbacks that may wait
+	 */
+	public void setCallbackExecutor(Executor executor, int queueCapacity){
+		dispatcher.setExecutor(executor, queueCapacity);
+	}
+
+	/**
+	 * Run the scan callbacks on the SDK callback thread, see {@link #setCallbackExecutor(Executor, int)}
+	 * @param queueCapacity callbacks that may wait
+	 */
+	public void setDedicatedCallbackThread(int queueCapacity){
+		dispatcher.setExecutor(SdkThread.getCallbackExecutor(), queueCapacity);
+	}
+
+	/**
+	 * Get the number of scan callbacks waiting for the executor
+	 * @return queue depth
+	 */
+	public int getCallbackQueueDepth(){
+		return dispatcher.getQueueDepth();
+	}
+
+	/**
+	 * Get the number of discoveries dropped because the callback queue was full
+	 * @return dropped callbacks
+	 */
+	public long getDroppedCallbackCount(){
+		return dispatcher.getDroppedCount();
+	}
+
+	/**
+	 * Get a discovered device
+	 * @param uuid device uuid
+	 * @return device, null if it is not known
+	 */
+	public JumaDevice getDevice(UUID uuid){
+		return registry.find(uuid);
+	}
+
 	/**
 	 * Get Scan status
 	 * @return Scan status.true/false
@@ -150,15 +287,118 @@ public class ScanHelper {
 		return SDK_VERSION;
 	}
 
+	private boolean startBackend(){
+		if(!useLegacyScan && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP){
+			if(leScanner == null)
+				leScanner = new LeScannerBackend(this);
+
+			if(!leScanner.start(bluetoothAdapter, name, scanMode, reportDelay))
+				return false;
+
+			activeLeScanner = leScanner;
+			return true;
+		}
+
+		return bluetoothAdapter.startLeScan(leScanCallback);
+	}
+
+	private void stopBackend(){
+		if(activeLeScanner != null){
+			activeLeScanner.stop();
+			activeLeScanner = null;
+		}else{
+			bluetoothAdapter.stopLeScan(leScanCallback);
+		}
+	}
+
+	void onScanFailed(){
+		if(!isScanning)
+			return;
+
+		isScanning = false;
+		activeLeScanner = null;
+		SdkThread.getHandler().removeCallbacks(evictionTask);
+		flushBatch();
+		updateScanState(STATE_STOP_SCAN);
+	}
+
 	private BluetoothAdapter.LeScanCallback leScanCallback = new LeScanCallback() {
 
 		@Override
 		public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
-			if(!getServiceUuids(scanRecord).contains(JUMA_SERVICE_UUID))
+			onAdvertisement(device, rssi, scanRecord);
+		}
+	};
+
+	void onAdvertisement(BluetoothDevice device, int rssi, byte[] scanRecord){
+		if(!AdvertisingData.containsUuid16(scanRecord, JUMA_SERVICE_UUID))
+			return;
+
+		if(name == null || name.equals("") || name.equals(device.getName())){
+			long now = SystemClock.elapsedRealtime();
+			DeviceRegistry.Entry entry = registry.get(device.getAddress());
+
+			if(entry == null){
+				UUID uuid = IDEncrypt(device.getAddress());
+				if(uuid == null)
+					return;
+
+				entry = registry.add(device.getAddress(), new JumaDevice(context, this, device.getName(), uuid), rssi, now);
+			}else if(!registry.update(entry, rssi, now)){
 				return;
-			
-			if(name == null || name.equals("") || name.equals(device.getName())){
-				callback.onDiscover(new JumaDevice(context, ScanHelper.this, device.getName(), UUID.fromString(IDEncrypt(device.getAddress(), context))), rssi);
+			}
+
+			if(batch.isEnabled())
+				addToBatch(entry.device, rssi, now);
+			else
+				dispatchDiscover(entry.device, rssi);
+		}
+	}
+
+	private Runnable evictionTask = new Runnable() {
+
+		@Override
+		public void run() {
+			List<JumaDevice> lost = registry.evict(SystemClock.elapsedRealtime());
+
+			if(lost != null && callback instanceof DeviceLostCallback){
+				final List<JumaDevice> devices = lost;
+				dispatcher.dispatch(new Runnable() {
+
+					@Override
+					public void run() {
+						for (JumaDevice device : devices) {
+							((DeviceLostCallback) callback).onLost(device);
+						}
+					}
+				}, false);
+			}
+
+			if(isScanning)
+				scheduleEviction();
+		}
+	};
+
+	private Runnable batchTask = new Runnable() {
+
+		@Override
+		public void run() {
+			final List<DeviceRecord> records = batch.drain();
+			if(records == null)
+				return;
+
+			if(callback instanceof BatchScanCallback){
+				dispatcher.dispatch(new Runnable() {
+
+					@Override
+					public void run() {
+						((BatchScanCallback) callback).onDiscoverBatch(records);
+					}
+				}, false);
+			}else{
+				for (DeviceRecord record : records) {
+					dispatchDiscover(record.getDevice(), record.getRssi());
+				}
 			}
 		}
 	};
@@ -168,153 +408,123 @@ public class ScanHelper {
 		public void onScanStateChange(int newState);
 	}
 
-	private void updateScanState(int status){
-		if(callback != null)
-			callback.onScanStateChange(status);
+	/**
+	 * Scan callback that is also told when a device stops advertising.
+	 */
+	public interface DeviceLostCallback extends ScanCallback{
+		public void onLost(JumaDevice device);
 	}
 
-	private boolean checkBluetoothState(){
-		if(bluetoothAdapter == null || !bluetoothAdapter.isEnabled()){
-			return false;
-		}else {
-			return true;
+	/**
+	 * Scan callback that can take discoveries in batches, see {@link ScanHelper#setBatchMode(long, int)}.
+	 */
+	public interface BatchScanCallback extends ScanCallback{
+		public void onDiscoverBatch(List<DeviceRecord> records);
+	}
+
+	/**
+	 * A device and the latest rssi seen for it in a batch.
+	 */
+	public static final class DeviceRecord{
+		private final JumaDevice device;
+		int rssi;
+		long timestamp;
+
+		DeviceRecord(JumaDevice device, int rssi, long timestamp) {
+			this.device = device;
+			this.rssi = rssi;
+			this.timestamp = timestamp;
+		}
+
+		/**
+		 * Get device
+		 * @return device
+		 */
+		public JumaDevice getDevice() {
+			return device;
+		}
+
+		/**
+		 * Get rssi
+		 * @return latest rssi in the batch window
+		 */
+		public int getRssi() {
+			return rssi;
+		}
+
+		/**
+		 * Get the time of the latest advert
+		 * @return {@link SystemClock#elapsedRealtime()} of the latest advert
+		 */
+		public long getTimestamp() {
+			return timestamp;
 		}
 	}
-	
-	private List<String> getServiceUuids(byte[] advData) {
-		List<String> uuids = new ArrayList<String>();
-		boolean isOver = true;
-		while (isOver) {
-			int dataLen = advData[0];
-			if (dataLen == 0) {
-				isOver = false;
-				break;
-			}
-			byte[] allData = new byte[dataLen];
-			for (int i = 0; i < allData.length; i++) {
-				allData[i] = advData[i + 1];
-			}
-			byte[] type = { allData[0] };
-			byte[] data = new byte[allData.length - 1];
-			for (int i = 0; i < data.length; i++) {
-				data[i] = allData[i + 1];
-			}
-			if ((0xff & type[0]) == 0x02) {
-				byte[] mByte = new byte[data.length];
-				for (int i = 0; i < mByte.length; i++) {
-					mByte[i] = data[data.length - i - 1];
-				}
-				uuids.add(toHex(mByte));
-			} else if ((0xff & type[0]) == 0x03) {
-				int number = data.length / 2;
-				for (int i = 0; i < number; i++) {
-					byte[] mByte = { data[i * 2], data[i * 2 + 1] };
-					uuids.add(toHex(mByte));
-				}
-			} else if ((0xff & type[0]) == 0x04) {
-				byte[] mByte = new byte[data.length];
-				for (int i = 0; i < mByte.length; i++) {
-					mByte[i] = data[data.length - i - 1];
-				}
-				uuids.add(toHex(mByte));
-			} else if ((0xff & type[0]) == 0x05) {
-				int number = data.length / 4;
-				for (int i = 0; i < number; i++) {
-					byte[] mByte = { data[i * 4], data[i * 4 + 1],
-							data[i * 4 + 2], data[i * 4 + 3] };
-					uuids.add(toHex(mByte));
-				}
-			} else if ((0xff & type[0]) == 0x06) {
-				byte[] mByte = new byte[data.length];
-				for (int i = 0; i < mByte.length; i++) {
-					mByte[i] = data[data.length - i - 1];
-				}
-				uuids.add(toHex(mByte));
-			} else if ((0xff & type[0]) == 0x07) {
-				int number = data.length / 16;
-				for (int i = 0; i < number; i++) {
-					byte[] mByte = { data[i * 16], data[i * 16 + 1],
-							data[i * 16 + 2], data[i * 16 + 3],
-							data[i * 16 + 4], data[i * 16 + 5],
-							data[i * 16 + 6], data[i * 16 + 7],
-							data[i * 16 + 8], data[i * 16 + 9],
-							data[i * 16 + 10], data[i * 16 + 11],
-							data[i * 16 + 12], data[i * 16 + 13],
-							data[i * 16 + 14], data[i * 16 + 15] };
-					uuids.add(toHex(mByte));
-				}
-			}
-			byte[] newData = new byte[advData.length - dataLen - 1];
-			for (int i = 0; i < newData.length; i++) {
-				newData[i] = advData[i + 1 + dataLen];
-			}
-			advData = newData;
+
+	private void addToBatch(JumaDevice device, int rssi, long now){
+		int result = batch.add(device, rssi, now);
+
+		if(result == DiscoveryBatch.FULL){
+			SdkThread.getHandler().removeCallbacks(batchTask);
+			SdkThread.getHandler().post(batchTask);
+		}else if(result == DiscoveryBatch.STARTED && batch.getInterval() > 0){
+			SdkThread.getHandler().postDelayed(batchTask, batch.getInterval());
 		}
-		return uuids;
 	}
-	
-	private void appendHex(StringBuffer sb, byte b) { 
-		String HEX = "0123456789ABCDEF"; 
-		sb.append(HEX.charAt((b>>4)&0x0f)).append(HEX.charAt(b&0x0f)); 
-	}  
-
-	@SuppressLint("DefaultLocale")
-	private String IDEncrypt(String cleartextId , Context context){
-		StringBuffer sb = new StringBuffer(cleartextId);
-		for (int i = 2; i < sb.length(); i+=2) {
-			sb.deleteCharAt(i);
+
+	private void flushBatch(){
+		SdkThread.getHandler().removeCallbacks(batchTask);
+		if(!batch.isEmpty())
+			SdkThread.getHandler().post(batchTask);
+	}
+
+	private void scheduleEviction(){
+		long timeout = registry.getTimeout();
+		if(timeout > 0)
+			SdkThread.getHandler().postDelayed(evictionTask, Math.min(timeout / 2, 1000));
+	}
+
+	private void updateScanState(final int status){
+		if(callback != null){
+			dispatcher.dispatch(new Runnable() {
+
+				@Override
+				public void run() {
+					callback.onScanStateChange(status);
+				}
+			}, false);
 		}
-		StringBuffer sb2 = null;
-		try {
-			sb2 = new StringBuffer(encrypt(getLocalBluetoothMAC(context), sb.toString()));
-		} catch (Exception e) {
-			e.printStackTrace();
+	}
+
+	private void dispatchDiscover(final JumaDevice device, final int rssi){
+		if(!dispatcher.isAsync()){
+			callback.onDiscover(device, rssi);
+			return;
 		}
-		for (int i = 0; i < 4; i++) {
-			sb2.insert(8 + i * 5, "-");
+
+		dispatcher.dispatch(new Runnable() {
+
+			@Override
+			public void run() {
+				callback.onDiscover(device, rssi);
+			}
+		}, true);
+	}
+
+	private boolean checkBluetoothState(){
+		if(bluetoothAdapter == null || !bluetoothAdapter.isEnabled()){
+			return false;
+		}else {
+			return true;
 		}
-		return sb2.toString().toLowerCase();
-	}
-
-	private String encrypt(String seed, String cleartext) throws Exception { 
-		byte[] rawKey = getRawKey(seed.getBytes()); 
-		byte[] result = encrypt(rawKey, cleartext.getBytes()); 
-		return toHex(result); 
-	} 
-
-	private byte[] getRawKey(byte[] seed) throws Exception { 
-		KeyGenerator kgen = KeyGenerator.getInstance("AES"); 
-		SecureRandom sr = SecureRandom.getInstance("SHA1PRNG", "Crypto"); 
-		sr.setSeed(seed); 
-		kgen.init(128, sr); 
-		SecretKey skey = kgen.generateKey(); 
-		byte[] raw = skey.getEncoded(); 
-		return raw; 
-	} 
-
-	private byte[] encrypt(byte[] raw, byte[] clear) throws Exception { 
-		SecretKeySpec skeySpec = new SecretKeySpec(raw, "AES"); 
-		Cipher cipher = Cipher.getInstance("AES"); 
-		cipher.init(Cipher.ENCRYPT_MODE, skeySpec); 
-		byte[] encrypted = cipher.doFinal(clear); 
-		return encrypted; 
-	} 
-
-	private String toHex(byte[] buf) { 
-		if (buf == null) 
-			return ""; 
-		StringBuffer result = new StringBuffer(2*buf.length); 
-		for (int i = 0; i < buf.length; i++) { 
-			appendHex(result, buf[i]); 
-		} 
-		return result.toString(); 
-	} 
-
-	private String getLocalBluetoothMAC(Context context){
-		BluetoothManager manager = (BluetoothManager) context.getSystemService(Context.BLUETOOTH_SERVICE);
-		BluetoothAdapter adapter = manager.getAdapter();
-		String mac = adapter.getAddress();
-		return mac;
 	}
 	
+	private UUID IDEncrypt(String cleartextId){
+		DeviceIdCipher cipher = DeviceIdCipher.getInstance(bluetoothAdapter);
+		if(cipher == null)
+			return null;
+
+		return cipher.encrypt(cleartextId);
+	}
+
 }
@@ -0,0 +1,52 @@
+package com.juma.sdk;
+
+import java.util.concurrent.Executor;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+
+/**
+ * Shared background thread for the timers of the SDK,
+ * and a second one for callbacks dispatched off the Bluetooth threads.
+ */
+final class SdkThread {
+
+	private static Handler handler = null;
+	private static Executor callbackExecutor = null;
+
+	private SdkThread() {
+	}
+
+	/**
+	 * Get the handler of the SDK thread, starting the thread on first use
+	 * @return handler
+	 */
+	static synchronized Handler getHandler(){
+		if(handler == null){
+			HandlerThread thread = new HandlerThread("JumaSdk");
+			thread.start();
+			handler = new Handler(thread.getLooper());
+		}
+		return handler;
+	}
+
+	/**
+	 * Get the executor of the SDK callback thread, starting the thread on first use
+	 * @return executor
+	 */
+	static synchronized Executor getCallbackExecutor(){
+		if(callbackExecutor == null){
+			HandlerThread thread = new HandlerThread("JumaSdkCallback");
+			thread.start();
+			final Handler callbackHandler = new Handler(thread.getLooper());
+			callbackExecutor = new Executor() {
+
+				@Override
+				public void execute(Runnable command) {
+					callbackHandler.post(command);
+				}
+			};
+		}
+		return callbackExecutor;
+	}
+}
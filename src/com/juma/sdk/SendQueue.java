@@ -0,0 +1,118 @@
+package com.juma.sdk;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Bounded FIFO of messages waiting for the device to finish the current send.
+ * All methods must be called while holding the queue monitor.
+ */
+final class SendQueue {
+
+	private final ArrayDeque<OutboundMessage> messages = new ArrayDeque<OutboundMessage>();
+
+	private int capacity = 16;
+	private int overflowPolicy = JumaDevice.OVERFLOW_REJECT;
+	private long timeout = 0;
+
+	void setCapacity(int capacity){
+		this.capacity = capacity;
+		notifyAll();
+	}
+
+	void setOverflowPolicy(int overflowPolicy, long timeout){
+		this.overflowPolicy = overflowPolicy;
+		this.timeout = timeout;
+	}
+
+	int size(){
+		return messages.size();
+	}
+
+	boolean isEmpty(){
+		return messages.isEmpty();
+	}
+
+	/**
+	 * Add a message, applying the overflow policy when the queue is full
+	 * @param message message
+	 * @param dropped receives the message dropped to make room, if any
+	 * @return false if the message was rejected
+	 */
+	boolean offer(OutboundMessage message, OutboundMessage[] dropped){
+		if(messages.size() >= capacity){
+			switch (overflowPolicy) {
+			case JumaDevice.OVERFLOW_DROP_OLDEST:
+				if(capacity <= 0)
+					return false;
+				dropped[0] = messages.poll();
+				break;
+			case JumaDevice.OVERFLOW_BLOCK:
+				if(!awaitSpace())
+					return false;
+				break;
+			default:
+				return false;
+			}
+		}
+
+		messages.add(message);
+		return true;
+	}
+
+	OutboundMessage poll(){
+		OutboundMessage message = messages.poll();
+		if(message != null)
+			notifyAll();
+		return message;
+	}
+
+	/**
+	 * Remove all messages
+	 * @return removed messages
+	 */
+	List<OutboundMessage> clear(){
+		List<OutboundMessage> removed = new ArrayList<OutboundMessage>(messages);
+		messages.clear();
+		notifyAll();
+		return removed;
+	}
+
+	/**
+	 * Remove the messages of an owner, they are not reported
+	 * @param owner owner
+	 * @return number of removed messages
+	 */
+	int remove(Object owner){
+		int count = 0;
+		Iterator<OutboundMessage> iterator = messages.iterator();
+		while (iterator.hasNext()) {
+			if(iterator.next().owner == owner){
+				iterator.remove();
+				count++;
+			}
+		}
+
+		if(count > 0)
+			notifyAll();
+		return count;
+	}
+
+	private boolean awaitSpace(){
+		long deadline = System.currentTimeMillis() + timeout;
+		while (messages.size() >= capacity) {
+			long remaining = deadline - System.currentTimeMillis();
+			if(remaining <= 0)
+				return false;
+			try {
+				wait(remaining);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,214 @@
+package com.juma.sdk;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import android.util.Log;
+
+/**
+ * A payload of any length being sent as a sequence of framed messages.
+ * Every message of the transfer starts with a 2 byte sequence number and a flags byte,
+ * followed by the data. Only one message of the transfer is in flight at a time.
+ */
+public class StreamTransfer {
+
+	/**
+	 * Flag of the first message of a transfer
+	 */
+	public static final int FLAG_FIRST = 0x01;
+
+	/**
+	 * Flag of the last message of a transfer
+	 */
+	public static final int FLAG_LAST = 0x02;
+
+	static final int SEGMENT_HEADER_LENGTH = 3;
+
+	private static final int PENDING = -1;
+	private static final long RETRY_DELAY = 20;
+	private static final long SEND_TIMEOUT = 10000;
+
+	/**
+	 * Progress and completion of a transfer, called on the transfer thread.
+	 */
+	public static abstract class Callback {
+		public void onProgress(StreamTransfer transfer, long bytesSent, long totalBytes){};
+		public void onComplete(StreamTransfer transfer, int status){};
+	}
+
+	private final JumaDevice device;
+	private final byte type;
+	private final InputStream in;
+	private final long totalBytes;
+	private final int maxMessageLength;
+	private final Callback callback;
+
+	private volatile boolean isCancelled = false;
+	private volatile boolean isDone = false;
+	private volatile long bytesSent = 0;
+	private int sendStatus = PENDING;
+
+	StreamTransfer(JumaDevice device, byte type, InputStream in, long totalBytes, int maxMessageLength, Callback callback) {
+		this.device = device;
+		this.type = type;
+		this.in = in;
+		this.totalBytes = totalBytes;
+		this.maxMessageLength = maxMessageLength;
+		this.callback = callback;
+	}
+
+	/**
+	 * Cancel the transfer after the message in flight
+	 */
+	public void cancel(){
+		isCancelled = true;
+	}
+
+	/**
+	 * Get the cancel status
+	 * @return cancel status.true/false
+	 */
+	public boolean isCancelled(){
+		return isCancelled;
+	}
+
+	/**
+	 * Get the transfer status
+	 * @return true once the transfer completed, failed or was cancelled
+	 */
+	public boolean isDone(){
+		return isDone;
+	}
+
+	/**
+	 * Get the number of data bytes acknowledged so far
+	 * @return bytes sent
+	 */
+	public long getBytesSent(){
+		return bytesSent;
+	}
+
+	/**
+	 * Get the payload length
+	 * @return total bytes, -1 if unknown
+	 */
+	public long getTotalBytes(){
+		return totalBytes;
+	}
+
+	void start(){
+		new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				int status = JumaDevice.ERROR;
+				try {
+					status = transfer();
+				} catch (IOException e) {
+					Log.e(StreamTransfer.class.getName(), "Read failed", e);
+				} finally {
+					try {
+						in.close();
+					} catch (IOException e) {
+						Log.e(StreamTransfer.class.getName(), "Close failed", e);
+					}
+				}
+
+				isDone = true;
+				if(callback != null)
+					callback.onComplete(StreamTransfer.this, status);
+			}
+		}, "JumaStreamTransfer").start();
+	}
+
+	private int transfer() throws IOException{
+		int dataLength = maxMessageLength - SEGMENT_HEADER_LENGTH;
+		byte[] segment = new byte[maxMessageLength];
+		int sequence = 0;
+
+		while (true) {
+			if(isCancelled)
+				return JumaDevice.CANCELLED;
+
+			int count = readFully(segment, SEGMENT_HEADER_LENGTH, dataLength);
+			boolean isLast = count < dataLength || (totalBytes >= 0 && bytesSent + count >= totalBytes);
+
+			byte[] payload = segment;
+			if(count < dataLength){
+				payload = new byte[SEGMENT_HEADER_LENGTH + count];
+				System.arraycopy(segment, SEGMENT_HEADER_LENGTH, payload, SEGMENT_HEADER_LENGTH, count);
+			}
+
+			payload[0] = (byte) (sequence >> 8);
+			payload[1] = (byte) sequence;
+			payload[2] = (byte) ((sequence == 0 ? FLAG_FIRST : 0) | (isLast ? FLAG_LAST : 0));
+
+			if(!sendAndWait(payload))
+				return isCancelled ? JumaDevice.CANCELLED : JumaDevice.ERROR;
+
+			bytesSent += count;
+			sequence = (sequence + 1) & 0xffff;
+
+			if(callback != null)
+				callback.onProgress(this, bytesSent, totalBytes);
+
+			if(isLast)
+				return JumaDevice.SUCCESS;
+		}
+	}
+
+	private int readFully(byte[] buffer, int offset, int length) throws IOException{
+		int count = 0;
+		while (count < length) {
+			int read = in.read(buffer, offset + count, length - count);
+			if(read < 0)
+				break;
+			count += read;
+		}
+		return count;
+	}
+
+	private boolean sendAndWait(byte[] payload){
+		synchronized (this) {
+			sendStatus = PENDING;
+		}
+
+		OutboundMessage message = new OutboundMessage(type, payload, sendListener);
+		long deadline = System.currentTimeMillis() + SEND_TIMEOUT;
+
+		while (!device.readySend(message)) {
+			if(isCancelled || !device.isConnected() || System.currentTimeMillis() > deadline)
+				return false;
+
+			try {
+				Thread.sleep(RETRY_DELAY);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+
+		synchronized (this) {
+			while (sendStatus == PENDING) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+			return sendStatus == JumaDevice.SUCCESS;
+		}
+	}
+
+	private OutboundMessage.Listener sendListener = new OutboundMessage.Listener() {
+
+		@Override
+		public void onSent(int status) {
+			synchronized (StreamTransfer.this) {
+				sendStatus = status;
+				StreamTransfer.this.notifyAll();
+			}
+		}
+	};
+}